@@ -0,0 +1,178 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A future used to signal changes of the activation state of objects managed
+ * by {@link ObjectServiceTracker} and {@link MultiServiceTracker}. Each
+ * instance is completed only once; a new future is created each time the state
+ * changes. Callbacks registered with the {@link #addCallback(Runnable)} method
+ * are called by the thread completing this future, so clients can react to
+ * state changes without polling.
+ * 
+ * @author kotelnikov
+ * @param <T> the type of the value of this future
+ */
+public class ActivationFuture<T> implements Future<T> {
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger.getLogger(ActivationFuture.class
+        .getName());
+
+    /**
+     * Callbacks to call when this future is completed. The list is created
+     * when the first callback is added and it is removed when the future is
+     * completed.
+     */
+    private List<Runnable> fCallbacks;
+
+    /**
+     * This flag is <code>true</code> when this future is completed.
+     */
+    private boolean fDone;
+
+    /**
+     * The value of this future.
+     */
+    private T fValue;
+
+    /**
+     * Adds a new callback called when this future is completed. If this future
+     * is already completed then the callback is called immediately.
+     * 
+     * @param callback the callback to add
+     */
+    public void addCallback(Runnable callback) {
+        synchronized (this) {
+            if (!fDone) {
+                if (fCallbacks == null) {
+                    fCallbacks = new ArrayList<Runnable>();
+                }
+                fCallbacks.add(callback);
+                return;
+            }
+        }
+        run(callback);
+    }
+
+    /**
+     * Activation futures can not be cancelled; this method always returns
+     * <code>false</code>.
+     * 
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    /**
+     * Completes this future with the specified value and calls all registered
+     * callbacks. This method does nothing if the future is already completed.
+     * 
+     * @param value the value of this future
+     * @return <code>true</code> if this future was completed by this call
+     */
+    public boolean complete(T value) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (fDone) {
+                return false;
+            }
+            fDone = true;
+            callbacks = fCallbacks;
+            fCallbacks = null;
+            fValue = value;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                run(callback);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see java.util.concurrent.Future#get()
+     */
+    public synchronized T get()
+        throws InterruptedException,
+        ExecutionException {
+        while (!fDone) {
+            wait();
+        }
+        return fValue;
+    }
+
+    /**
+     * @see java.util.concurrent.Future#get(long,
+     *      java.util.concurrent.TimeUnit)
+     */
+    public synchronized T get(long timeout, TimeUnit unit)
+        throws InterruptedException,
+        ExecutionException,
+        TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!fDone) {
+            long delay = end - System.nanoTime();
+            if (delay <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, delay);
+        }
+        return fValue;
+    }
+
+    /**
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * @see java.util.concurrent.Future#isDone()
+     */
+    public synchronized boolean isDone() {
+        return fDone;
+    }
+
+    /**
+     * Calls the given callback and logs all exceptions.
+     * 
+     * @param callback the callback to call
+     */
+    private void run(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Activation callback failed", t);
+        }
+    }
+
+}
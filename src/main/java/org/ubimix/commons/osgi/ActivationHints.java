@@ -0,0 +1,227 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * This class keeps the order in which objects managed by a
+ * {@link MultiServiceTracker} were activated and the time spent in their
+ * activation. These hints are stored in the data area of the bundle and they
+ * are used on the next start to open trackers in the learned order and to
+ * start the preparation of slow objects first.
+ * 
+ * @author kotelnikov
+ */
+public class ActivationHints {
+
+    /**
+     * The prefix of property keys used to store activation durations.
+     */
+    private final static String DURATION = "duration.";
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger.getLogger(ActivationHints.class
+        .getName());
+
+    /**
+     * The prefix of property keys used to store object keys.
+     */
+    private final static String OBJECT = "object.";
+
+    /**
+     * Recorded activation durations (in nanoseconds) of individual objects.
+     */
+    private Map<String, Long> fDurations = new HashMap<String, Long>();
+
+    /**
+     * The file containing the stored hints. It can be <code>null</code> if the
+     * framework does not provide a file system support.
+     */
+    private File fFile;
+
+    /**
+     * Object keys in the order of their activation observed during the
+     * previous run.
+     */
+    private Map<String, Integer> fLearnedPositions = new HashMap<String, Integer>();
+
+    /**
+     * Keys of objects activated during the current run.
+     */
+    private List<String> fOrder = new ArrayList<String>();
+
+    /**
+     * Times (in nanoseconds) when the first activation of individual objects
+     * started in the current run. The activation of an object can be started
+     * while another object is still activating (for example when this object
+     * depends on a service registered by the other object), so objects are
+     * ordered by activation starts and not by the order of notifications.
+     */
+    private Map<String, Long> fStarts = new HashMap<String, Long>();
+
+    /**
+     * This constructor creates hints which are learned only in memory; they
+     * are neither loaded nor stored.
+     */
+    public ActivationHints() {
+        this(null, null);
+    }
+
+    /**
+     * This constructor loads hints from the specified file of the bundle data
+     * area.
+     * 
+     * @param context the bundle context used to access the bundle data area
+     * @param fileName the name of the file containing hints
+     */
+    public ActivationHints(BundleContext context, String fileName) {
+        fFile = context != null ? context.getDataFile(fileName) : null;
+        load();
+    }
+
+    /**
+     * Returns the activation time (in nanoseconds) of the object with the
+     * specified key recorded in the previous or in the current run or -1 if
+     * this object is unknown.
+     * 
+     * @param key the key of the object
+     * @return the activation time of the object
+     */
+    public synchronized long getDuration(String key) {
+        Long duration = fDurations.get(key);
+        return duration != null ? duration.longValue() : -1;
+    }
+
+    /**
+     * Returns the position of the object with the specified key in the
+     * activation order learned in the previous run or -1 if this object was not
+     * activated.
+     * 
+     * @param key the key of the object
+     * @return the learned activation position of the object
+     */
+    public synchronized int getPosition(String key) {
+        Integer position = fLearnedPositions.get(key);
+        return position != null ? position.intValue() : -1;
+    }
+
+    /**
+     * Loads hints from the file.
+     */
+    private void load() {
+        if (fFile == null || !fFile.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream input = new FileInputStream(fFile);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "Can not load activation hints", e);
+            return;
+        }
+        for (int i = 0;; i++) {
+            String key = properties.getProperty(OBJECT + i);
+            if (key == null) {
+                break;
+            }
+            fLearnedPositions.put(key, i);
+            try {
+                String duration = properties.getProperty(DURATION + i);
+                if (duration != null) {
+                    fDurations.put(key, Long.parseLong(duration));
+                }
+            } catch (NumberFormatException e) {
+                // Just ignore the bad duration value
+            }
+        }
+    }
+
+    /**
+     * Records the activation of the object with the specified key. Only the
+     * first activation of each object is taken into account for the order.
+     * 
+     * @param key the key of the activated object
+     * @param start the time (in nanoseconds) when the activation started
+     * @param duration the time (in nanoseconds) spent in object activation
+     */
+    public synchronized void record(String key, long start, long duration) {
+        if (!fStarts.containsKey(key)) {
+            fStarts.put(key, start);
+            fOrder.add(key);
+        }
+        fDurations.put(key, duration);
+    }
+
+    /**
+     * Stores the activation order observed in the current run. If no objects
+     * were activated then the previously stored hints are kept unchanged.
+     */
+    public synchronized void store() {
+        if (fFile == null || fOrder.isEmpty()) {
+            return;
+        }
+        Collections.sort(fOrder, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return fStarts.get(o1).compareTo(fStarts.get(o2));
+            }
+        });
+        Properties properties = new Properties();
+        for (int i = 0; i < fOrder.size(); i++) {
+            String key = fOrder.get(i);
+            properties.setProperty(OBJECT + i, key);
+            Long duration = fDurations.get(key);
+            if (duration != null) {
+                properties.setProperty(DURATION + i, String.valueOf(duration));
+            }
+        }
+        try {
+            OutputStream output = new FileOutputStream(fFile);
+            try {
+                properties.store(output, "Object activation order");
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "Can not store activation hints", e);
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+/**
+ * Statistics of calls of one method collected by the {@link CallWatchdog} or by
+ * the {@link ServiceCallMonitor}.
+ * <p>
+ * Durations of calls are counted in a latency histogram with
+ * {@value #HISTOGRAM_SIZE} buckets. The bucket 0 counts calls shorter than one
+ * microsecond and the bucket <code>i</code> counts calls taking from
+ * <code>2^(i-1)</code> to <code>2^i</code> microseconds; the last bucket counts
+ * all longer calls.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class CallStatistics {
+
+    /**
+     * The number of buckets in the latency histogram.
+     */
+    public final static int HISTOGRAM_SIZE = 32;
+
+    /**
+     * Returns the index of the histogram bucket counting calls with the
+     * specified duration.
+     * 
+     * @param duration the duration of a call (in nanoseconds)
+     * @return the index of the histogram bucket
+     */
+    public static int getBucket(long duration) {
+        long micros = duration / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, HISTOGRAM_SIZE - 1);
+    }
+
+    /**
+     * The number of calls.
+     */
+    private long fCount;
+
+    /**
+     * The latency histogram.
+     */
+    private final long[] fHistogram = new long[HISTOGRAM_SIZE];
+
+    /**
+     * Stack traces sampled during the last slow call.
+     */
+    private StackTraceElement[][] fLastSlowSamples = new StackTraceElement[0][];
+
+    /**
+     * The maximal duration of one call (in nanoseconds).
+     */
+    private long fMaxTime;
+
+    /**
+     * The name of the method.
+     */
+    private final String fName;
+
+    /**
+     * The number of calls exceeding the watchdog threshold.
+     */
+    private long fSlowCount;
+
+    /**
+     * The total duration of all calls (in nanoseconds).
+     */
+    private long fTotalTime;
+
+    /**
+     * @param name the name of the method
+     */
+    public CallStatistics(String name) {
+        fName = name;
+    }
+
+    /**
+     * Returns the average duration of calls (in nanoseconds).
+     * 
+     * @return the average duration of calls
+     */
+    public synchronized long getAverageTime() {
+        return fCount > 0 ? fTotalTime / fCount : 0;
+    }
+
+    /**
+     * Returns the number of calls.
+     * 
+     * @return the number of calls
+     */
+    public synchronized long getCount() {
+        return fCount;
+    }
+
+    /**
+     * Returns a copy of the latency histogram. See {@link #getBucket(long)}
+     * for the meaning of individual buckets.
+     * 
+     * @return the latency histogram
+     */
+    public synchronized long[] getHistogram() {
+        long[] result = new long[fHistogram.length];
+        System.arraycopy(fHistogram, 0, result, 0, fHistogram.length);
+        return result;
+    }
+
+    /**
+     * Returns stack traces of the executing thread sampled during the last
+     * slow call.
+     * 
+     * @return stack traces sampled during the last slow call
+     */
+    public synchronized StackTraceElement[][] getLastSlowSamples() {
+        return fLastSlowSamples;
+    }
+
+    /**
+     * Returns the maximal duration of one call (in nanoseconds).
+     * 
+     * @return the maximal duration of one call
+     */
+    public synchronized long getMaxTime() {
+        return fMaxTime;
+    }
+
+    /**
+     * Returns the name of the method.
+     * 
+     * @return the name of the method
+     */
+    public String getName() {
+        return fName;
+    }
+
+    /**
+     * Returns the number of calls exceeding the watchdog threshold.
+     * 
+     * @return the number of slow calls
+     */
+    public synchronized long getSlowCount() {
+        return fSlowCount;
+    }
+
+    /**
+     * Returns the total duration of all calls (in nanoseconds).
+     * 
+     * @return the total duration of all calls
+     */
+    public synchronized long getTotalTime() {
+        return fTotalTime;
+    }
+
+    /**
+     * Records a new call.
+     * 
+     * @param duration the duration of the call (in nanoseconds)
+     * @param slow this flag is <code>true</code> if the call exceeded the
+     *        watchdog threshold
+     * @param samples stack traces sampled during the call; this parameter is
+     *        <code>null</code> if no stack traces were sampled (for fast calls
+     *        and for slow calls finished before the first sample)
+     */
+    public synchronized void record(
+        long duration,
+        boolean slow,
+        StackTraceElement[][] samples) {
+        fCount++;
+        fHistogram[getBucket(duration)]++;
+        fTotalTime += duration;
+        if (fMaxTime < duration) {
+            fMaxTime = duration;
+        }
+        if (slow) {
+            fSlowCount++;
+            if (samples != null) {
+                fLastSlowSamples = samples;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return fName
+            + "[count="
+            + fCount
+            + ", avg="
+            + (getAverageTime() / 1000)
+            + "us, max="
+            + (fMaxTime / 1000)
+            + "us, slow="
+            + fSlowCount
+            + "]";
+    }
+
+}
@@ -0,0 +1,325 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class measures calls of activators, deactivators and service callbacks
+ * of objects managed by {@link ObjectServiceTracker}s. When a call takes more
+ * time than the configured threshold then the watchdog logs the object, the
+ * method and stack traces of the executing thread sampled while the call was
+ * in progress. Statistics of all measured methods are retained and they are
+ * available using the {@link #getStatistics()} method.
+ * <p>
+ * Calls in progress are checked by one daemon thread. This thread is started
+ * when a call begins and it stops itself when there are no more calls in
+ * progress.
+ * </p>
+ * <p>
+ * Watchdogs are disabled by default: trackers measure calls only if a watchdog
+ * is set using the {@link ObjectServiceTracker#setWatchdog(CallWatchdog)} or
+ * {@link MultiServiceTracker#setWatchdog(CallWatchdog)} method. The default
+ * instance is used by all trackers if the {@value #ENABLED_PROPERTY} system
+ * property is <code>true</code>. This instance is configured using the
+ * {@value #THRESHOLD_PROPERTY} and {@value #INTERVAL_PROPERTY} system
+ * properties (in milliseconds).
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class CallWatchdog {
+
+    /**
+     * Information about one call in progress.
+     */
+    public static class Call {
+
+        private final Method fMethod;
+
+        private final Object fObject;
+
+        private List<StackTraceElement[]> fSamples;
+
+        private final long fStart = System.nanoTime();
+
+        private final Thread fThread = Thread.currentThread();
+
+        public Call(Object object, Method method) {
+            fObject = object;
+            fMethod = method;
+        }
+    }
+
+    /**
+     * The name of the system property enabling the default watchdog for all
+     * trackers.
+     */
+    public final static String ENABLED_PROPERTY = "org.ubimix.commons.osgi.watchdog";
+
+    /**
+     * The name of the system property defining the sampling interval of the
+     * default watchdog (in milliseconds).
+     */
+    public final static String INTERVAL_PROPERTY = "org.ubimix.commons.osgi.watchdog.interval";
+
+    private static CallWatchdog fInstance;
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger.getLogger(CallWatchdog.class
+        .getName());
+
+    /**
+     * The maximal number of stack traces sampled for one call.
+     */
+    public final static int MAX_SAMPLES = 10;
+
+    /**
+     * The name of the system property defining the threshold of the default
+     * watchdog (in milliseconds).
+     */
+    public final static String THRESHOLD_PROPERTY = "org.ubimix.commons.osgi.watchdog.threshold";
+
+    /**
+     * Returns the watchdog used by trackers by default. It is the default
+     * instance if the {@value #ENABLED_PROPERTY} system property is
+     * <code>true</code> and <code>null</code> otherwise.
+     * 
+     * @return the watchdog used by trackers by default
+     */
+    public static CallWatchdog getDefault() {
+        return Boolean.getBoolean(ENABLED_PROPERTY) ? getInstance() : null;
+    }
+
+    /**
+     * Returns the default watchdog instance.
+     * 
+     * @return the default watchdog
+     */
+    public synchronized static CallWatchdog getInstance() {
+        if (fInstance == null) {
+            long threshold = Long.getLong(THRESHOLD_PROPERTY, 5000);
+            long interval = Long.getLong(INTERVAL_PROPERTY, 1000);
+            fInstance = new CallWatchdog(threshold, interval);
+        }
+        return fInstance;
+    }
+
+    /**
+     * Calls in progress.
+     */
+    private final Map<Call, Boolean> fCalls = new ConcurrentHashMap<Call, Boolean>();
+
+    /**
+     * The interval between two checks of calls in progress (in milliseconds).
+     */
+    private final long fInterval;
+
+    /**
+     * The thread checking calls in progress; it is <code>null</code> if there
+     * is no calls to check.
+     */
+    private Thread fScanner;
+
+    /**
+     * Statistics of individual methods. Methods are referenced weakly, so
+     * statistics do not prevent unloading of classes of managed objects.
+     */
+    private final Map<Method, CallStatistics> fStatistics = new WeakHashMap<Method, CallStatistics>();
+
+    /**
+     * The maximal "normal" duration of calls (in nanoseconds).
+     */
+    private final long fThreshold;
+
+    /**
+     * @param threshold the maximal "normal" duration of calls (in
+     *        milliseconds)
+     * @param interval the interval between two stack samples of slow calls (in
+     *        milliseconds)
+     */
+    public CallWatchdog(long threshold, long interval) {
+        fThreshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+        fInterval = Math.max(1, interval);
+    }
+
+    /**
+     * Notifies this watchdog that a call of the specified method begins in the
+     * current thread.
+     * 
+     * @param object the object owning the method
+     * @param method the called method
+     * @return a call object which should be passed to the
+     *         {@link #end(Call)} method when the call is finished
+     */
+    public Call begin(Object object, Method method) {
+        Call call = new Call(object, method);
+        fCalls.put(call, Boolean.TRUE);
+        synchronized (this) {
+            if (fScanner == null) {
+                fScanner = new Thread("CallWatchdog") {
+                    @Override
+                    public void run() {
+                        scan();
+                    }
+                };
+                fScanner.setDaemon(true);
+                fScanner.start();
+            }
+        }
+        return call;
+    }
+
+    /**
+     * Notifies this watchdog that the specified call is finished.
+     * 
+     * @param call the finished call
+     */
+    public void end(Call call) {
+        long duration = System.nanoTime() - call.fStart;
+        fCalls.remove(call);
+        boolean slow = duration >= fThreshold;
+        StackTraceElement[][] samples = null;
+        synchronized (call) {
+            if (call.fSamples != null) {
+                samples = call.fSamples
+                    .toArray(new StackTraceElement[call.fSamples.size()][]);
+            }
+        }
+        if (slow) {
+            log.warning("Slow call "
+                + getName(call.fMethod)
+                + " on "
+                + call.fObject
+                + " finished in "
+                + TimeUnit.NANOSECONDS.toMillis(duration)
+                + " ms.");
+        }
+        getStatistics(call.fMethod).record(duration, slow, samples);
+    }
+
+    /**
+     * Returns the name of the given method used in logs and statistics.
+     * 
+     * @param method the method
+     * @return the name of the method
+     */
+    private String getName(Method method) {
+        return method.getDeclaringClass().getName() + "#" + method.getName();
+    }
+
+    /**
+     * Returns statistics of all measured methods.
+     * 
+     * @return statistics of all measured methods
+     */
+    public List<CallStatistics> getStatistics() {
+        List<CallStatistics> result;
+        synchronized (fStatistics) {
+            result = new ArrayList<CallStatistics>(fStatistics.values());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns statistics of the specified method.
+     * 
+     * @param method the method
+     * @return statistics of the specified method
+     */
+    public CallStatistics getStatistics(Method method) {
+        synchronized (fStatistics) {
+            CallStatistics statistics = fStatistics.get(method);
+            if (statistics == null) {
+                statistics = new CallStatistics(getName(method));
+                fStatistics.put(method, statistics);
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * Returns the threshold of this watchdog (in milliseconds).
+     * 
+     * @return the threshold of this watchdog
+     */
+    public long getThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(fThreshold);
+    }
+
+    /**
+     * Checks calls in progress and samples stack traces of threads executing
+     * slow calls. This method returns when there is no more calls in progress.
+     */
+    private void scan() {
+        while (true) {
+            try {
+                Thread.sleep(fInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                if (fCalls.isEmpty() || Thread.interrupted()) {
+                    fScanner = null;
+                    return;
+                }
+            }
+            long now = System.nanoTime();
+            for (Call call : fCalls.keySet()) {
+                long duration = now - call.fStart;
+                if (duration < fThreshold) {
+                    continue;
+                }
+                StackTraceElement[] stack = call.fThread.getStackTrace();
+                boolean first;
+                synchronized (call) {
+                    first = call.fSamples == null;
+                    if (first) {
+                        call.fSamples = new ArrayList<StackTraceElement[]>();
+                    }
+                    if (call.fSamples.size() < MAX_SAMPLES) {
+                        call.fSamples.add(stack);
+                    }
+                }
+                if (first) {
+                    Throwable trace = new Throwable("Stack trace of the thread "
+                        + call.fThread.getName());
+                    trace.setStackTrace(stack);
+                    log.log(Level.WARNING, "The call "
+                        + getName(call.fMethod)
+                        + " on "
+                        + call.fObject
+                        + " takes more than "
+                        + TimeUnit.NANOSECONDS.toMillis(duration)
+                        + " ms.", trace);
+                }
+            }
+        }
+    }
+
+}
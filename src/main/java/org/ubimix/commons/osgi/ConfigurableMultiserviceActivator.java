@@ -16,8 +16,18 @@
  * ************************************************************************** */
 package org.ubimix.commons.osgi;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,18 +37,214 @@ import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
+import org.osgi.service.cm.ManagedServiceFactory;
 
 /**
+ * This activator manages objects configured using the Configuration Admin
+ * service. Objects returned by the {@link #getTrackedObjects()} method are
+ * configured with the PID returned by {@link #getServiceID()}.
+ * <p>
+ * If the {@link #getFactoryPID()} method returns a PID then this activator
+ * also registers a {@link ManagedServiceFactory}. For each factory
+ * configuration a new set of objects is created using the
+ * {@link #getTrackedObjects(String, Dictionary)} method and managed by its own
+ * {@link MultiServiceTracker}. These trackers are opened and closed
+ * concurrently by a pool of threads; updates and deletions of the same
+ * configuration are applied in order and only the latest pending modification
+ * is applied. All factory
+ * trackers share class metadata and activation hints. Keys of objects managed
+ * for a factory configuration are prefixed with its PID (see
+ * {@link MultiServiceTracker#setKeyPrefix(String)}), so states stored by
+ * objects of different configurations do not collide.
+ * </p>
+ * 
  * @author kotelnikov
  */
 public abstract class ConfigurableMultiserviceActivator
     implements
     BundleActivator {
 
+    /**
+     * Objects managed for one factory configuration. All modifications of the
+     * configuration are applied serially by the factory executor. A deleted
+     * instance stays registered until its tracker is closed, so a new
+     * configuration with the same PID is applied by the same instance after
+     * the disposal of the old objects.
+     */
+    private class FactoryInstance implements Runnable {
+
+        private boolean fDeleted;
+
+        private Dictionary<?, ?> fPending;
+
+        private final String fPid;
+
+        private Dictionary<?, ?> fProperties;
+
+        private boolean fScheduled;
+
+        private MultiServiceTracker fTracker;
+
+        /**
+         * This lock is used to serialize modifications of the tracker of this
+         * instance with the final shutdown of the factory.
+         */
+        private final Object fTrackerLock = new Object();
+
+        public FactoryInstance(String pid) {
+            fPid = pid;
+        }
+
+        /**
+         * Closes the tracker of this instance.
+         * 
+         * @param shutdown if this flag is <code>true</code> then the tracker
+         *        is shut down (see {@link MultiServiceTracker#shutdown()})
+         */
+        private void close(boolean shutdown) throws Exception {
+            if (fTracker != null) {
+                if (shutdown) {
+                    fTracker.shutdown();
+                } else {
+                    fTracker.close();
+                }
+                fTracker = null;
+            }
+        }
+
+        /**
+         * Schedules the disposal of this instance.
+         */
+        public synchronized void delete() {
+            fDeleted = true;
+            fPending = null;
+            schedule();
+        }
+
+        /**
+         * Removes this deleted instance from the map of factory instances if
+         * the configuration was not re-created in the meantime.
+         * 
+         * @return <code>true</code> if this instance was removed
+         */
+        private boolean dispose() {
+            synchronized (fFactoryInstances) {
+                synchronized (this) {
+                    if (!fDeleted || fPending != null) {
+                        return false;
+                    }
+                    if (fFactoryInstances.get(fPid) == this) {
+                        fFactoryInstances.remove(fPid);
+                    }
+                    fScheduled = false;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Applies the latest pending modification of the configuration.
+         */
+        public void run() {
+            while (true) {
+                Dictionary<?, ?> properties;
+                boolean deleted;
+                synchronized (this) {
+                    properties = fPending;
+                    deleted = fDeleted;
+                    fPending = null;
+                    if (properties == null && !deleted) {
+                        fScheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    long start = System.nanoTime();
+                    synchronized (fTrackerLock) {
+                        if (deleted) {
+                            close(true);
+                            if (dispose()) {
+                                return;
+                            }
+                            continue;
+                        }
+                        if (fTracker != null && properties.equals(fProperties)) {
+                            continue;
+                        }
+                        close(false);
+                        fProperties = properties;
+                        Object[] objects = getTrackedObjects(fPid, properties);
+                        fTracker = new MultiServiceTracker(fContext, objects);
+                        fTracker.setKeyPrefix(fPid);
+                        fTracker.setHints(fFactoryHints);
+                        fTracker.open();
+                    }
+                    TrackerEvents.Sink sink = TrackerEvents.getSink();
+                    if (sink != null) {
+                        sink.onConfigurationUpdate(fPid, start, System
+                            .nanoTime()
+                            - start);
+                    }
+                } catch (Throwable e) {
+                    handleError("Can not update the factory configuration "
+                        + fPid, e);
+                }
+            }
+        }
+
+        private void schedule() {
+            if (!fScheduled) {
+                fScheduled = true;
+                try {
+                    fFactoryExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The factory is stopped
+                    fScheduled = false;
+                }
+            }
+        }
+
+        /**
+         * Schedules the update of this instance with the given configuration.
+         * If this instance was deleted then its objects are re-created once
+         * the old ones are disposed.
+         * 
+         * @param properties the new configuration
+         */
+        public synchronized void update(Dictionary<?, ?> properties) {
+            fDeleted = false;
+            fPending = properties;
+            schedule();
+        }
+    }
+
+    /**
+     * The name of the file in the bundle data area used to store activation
+     * hints shared by trackers of factory configurations.
+     */
+    public final static String FACTORY_HINTS_FILE = "ubimix.osgi.factory.activation.properties";
+
     protected BundleContext fContext;
 
+    /**
+     * The executor used to open and close trackers of factory configurations.
+     */
+    private ExecutorService fFactoryExecutor;
+
+    /**
+     * Activation hints shared by trackers of factory configurations.
+     */
+    private ActivationHints fFactoryHints;
+
+    /**
+     * Objects managed for individual factory configurations.
+     */
+    private final Map<String, FactoryInstance> fFactoryInstances = new HashMap<String, FactoryInstance>();
+
     private final Logger fLogger = Logger.getLogger(getClass().getName());
 
+    private ServiceRegistration fManagedServiceFactoryRegistration;
+
     private ServiceRegistration fManagedServiceRegistration;
 
     protected Dictionary<?, ?> fProperties;
@@ -64,13 +270,37 @@ public abstract class ConfigurableMultiserviceActivator
         return (fProperties == null || !fProperties.equals(properties));
     }
 
-    private synchronized void closeTracker() throws Exception {
+    private synchronized void closeTracker(boolean shutdown) throws Exception {
         if (fTracker != null) {
-            fTracker.close();
+            if (shutdown) {
+                fTracker.shutdown();
+            } else {
+                fTracker.close();
+            }
             fTracker = null;
         }
     }
 
+    /**
+     * Returns the PID of the managed service factory registered by this
+     * activator or <code>null</code> if the factory should not be registered.
+     * 
+     * @return the PID of the managed service factory
+     */
+    protected String getFactoryPID() {
+        return null;
+    }
+
+    /**
+     * Returns the number of threads used to open and close trackers of
+     * factory configurations.
+     * 
+     * @return the number of threads used by the factory
+     */
+    protected int getFactoryThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
     public Dictionary<?, ?> getfProperties() {
         return fProperties;
     }
@@ -84,6 +314,19 @@ public abstract class ConfigurableMultiserviceActivator
         return new Object[] { this };
     }
 
+    /**
+     * Returns objects managed for the factory configuration with the specified
+     * PID. This method should be overloaded by activators defining the factory
+     * PID (see {@link #getFactoryPID()}).
+     * 
+     * @param pid the PID of the factory configuration
+     * @param properties the configuration properties
+     * @return objects managed for the specified configuration
+     */
+    protected Object[] getTrackedObjects(String pid, Dictionary<?, ?> properties) {
+        return new Object[0];
+    }
+
     protected void handleError(String msg, Throwable e) {
         fLogger.log(Level.WARNING, msg, e);
     }
@@ -118,14 +361,21 @@ public abstract class ConfigurableMultiserviceActivator
             public void updated(Dictionary properties)
                 throws ConfigurationException {
                 try {
+                    long start = System.nanoTime();
                     synchronized (ConfigurableMultiserviceActivator.this) {
                         boolean modified = checkPropertiesModifications(properties);
                         fProperties = properties;
                         if (modified && (fTracker == null || reloadOnUpdate())) {
-                            closeTracker();
+                            closeTracker(false);
                             openTracker();
                         }
                     }
+                    TrackerEvents.Sink sink = TrackerEvents.getSink();
+                    if (sink != null) {
+                        sink.onConfigurationUpdate(getServiceID(), start, System
+                            .nanoTime()
+                            - start);
+                    }
                 } catch (Exception e) {
                     handleError("Can not update the configuration", e);
                     throw new ConfigurationException(null, e.getMessage());
@@ -136,6 +386,64 @@ public abstract class ConfigurableMultiserviceActivator
             ManagedService.class.getName(),
             managedService,
             params);
+        String factoryPID = getFactoryPID();
+        if (factoryPID != null) {
+            startFactory(factoryPID);
+        }
+    }
+
+    /**
+     * Registers the managed service factory with the specified PID.
+     * 
+     * @param factoryPID the PID of the factory
+     */
+    private void startFactory(final String factoryPID) {
+        final AtomicInteger counter = new AtomicInteger();
+        fFactoryExecutor = Executors.newFixedThreadPool(
+            Math.max(1, getFactoryThreadCount()),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, factoryPID
+                        + "-"
+                        + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        fFactoryHints = new ActivationHints(fContext, FACTORY_HINTS_FILE);
+        ManagedServiceFactory factory = new ManagedServiceFactory() {
+            public void deleted(String pid) {
+                synchronized (fFactoryInstances) {
+                    FactoryInstance instance = fFactoryInstances.get(pid);
+                    if (instance != null) {
+                        instance.delete();
+                    }
+                }
+            }
+
+            public String getName() {
+                return factoryPID;
+            }
+
+            @SuppressWarnings("rawtypes")
+            public void updated(String pid, Dictionary properties)
+                throws ConfigurationException {
+                synchronized (fFactoryInstances) {
+                    FactoryInstance instance = fFactoryInstances.get(pid);
+                    if (instance == null) {
+                        instance = new FactoryInstance(pid);
+                        fFactoryInstances.put(pid, instance);
+                    }
+                    instance.update(properties);
+                }
+            }
+        };
+        Dictionary<String, String> params = new Hashtable<String, String>();
+        params.put(Constants.SERVICE_PID, factoryPID);
+        fManagedServiceFactoryRegistration = fContext.registerService(
+            ManagedServiceFactory.class.getName(),
+            factory,
+            params);
     }
 
     /**
@@ -146,7 +454,42 @@ public abstract class ConfigurableMultiserviceActivator
             fManagedServiceRegistration.unregister();
             fManagedServiceRegistration = null;
         }
-        closeTracker();
+        stopFactory();
+        closeTracker(true);
+    }
+
+    /**
+     * Unregisters the managed service factory and shuts down trackers of all
+     * factory configurations.
+     */
+    private void stopFactory() throws Exception {
+        if (fManagedServiceFactoryRegistration == null) {
+            return;
+        }
+        fManagedServiceFactoryRegistration.unregister();
+        fManagedServiceFactoryRegistration = null;
+        fFactoryExecutor.shutdown();
+        if (!fFactoryExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+            handleError("Factory configurations are not applied in time", null);
+        }
+        List<FactoryInstance> instances;
+        synchronized (fFactoryInstances) {
+            instances = new ArrayList<FactoryInstance>(fFactoryInstances
+                .values());
+            fFactoryInstances.clear();
+        }
+        for (FactoryInstance instance : instances) {
+            synchronized (instance.fTrackerLock) {
+                try {
+                    instance.close(true);
+                } catch (Exception e) {
+                    handleError("Can not close the factory configuration "
+                        + instance.fPid, e);
+                }
+            }
+        }
+        fFactoryHints.store();
+        fFactoryHints = null;
     }
 
 }
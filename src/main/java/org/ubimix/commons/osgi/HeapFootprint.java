@@ -0,0 +1,151 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * This class contains constants and methods used to estimate heap sizes of
+ * trackers (see {@link ObjectServiceTracker#getFootprint()} and
+ * {@link MultiServiceTracker#getFootprint()}). Estimations are made for a
+ * 64-bit virtual machine using compressed object references (the default for
+ * heaps smaller than 32 GB): object headers take 12 bytes, array headers take
+ * 16 bytes, references take 4 bytes and objects are aligned by 8 bytes.
+ * <p>
+ * Sizes of structures created by the framework (like the internal state of
+ * service trackers) are rough averages; they are used to compare trackers
+ * with each other and not to compute exact heap sizes.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public final class HeapFootprint {
+
+    /**
+     * The size of an array header (in bytes).
+     */
+    public final static int ARRAY_HEADER = 16;
+
+    /**
+     * The size of an object header (in bytes).
+     */
+    public final static int OBJECT_HEADER = 12;
+
+    /**
+     * The size of an object reference (in bytes).
+     */
+    public final static int REFERENCE = 4;
+
+    /**
+     * The estimated size of an empty list (an {@link java.util.ArrayList} or a
+     * {@link java.util.concurrent.CopyOnWriteArrayList}) without its array.
+     */
+    public final static long LIST = object(2, 8);
+
+    /**
+     * The estimated size of an {@link ActivationFuture} without callbacks.
+     */
+    public final static long ACTIVATION_FUTURE = object(2, 1);
+
+    /**
+     * The estimated size of the internal state of an OSGi service tracker
+     * without tracked services.
+     */
+    public final static long SERVICE_TRACKER = 320;
+
+    /**
+     * The estimated size of an empty {@link ServiceIndex}.
+     */
+    public final static long SERVICE_INDEX = object(3, 0) + 128;
+
+    /**
+     * The estimated size of one service tracked by a service tracker: an
+     * entry in the map of tracked services and a {@link ServiceHandle}.
+     */
+    public final static long TRACKED_SERVICE = object(3, 8) + object(3, 2);
+
+    /**
+     * Aligns the given size by 8 bytes.
+     * 
+     * @param size the size to align
+     * @return the aligned size
+     */
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Returns the estimated size of an array of references with the given
+     * length.
+     * 
+     * @param length the length of the array
+     * @return the estimated size of the array
+     */
+    public static long array(int length) {
+        return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    /**
+     * Returns the estimated size of an instance of the given class without
+     * referenced objects. The size is computed from instance fields declared by
+     * the class and by its superclasses (including references to enclosing
+     * instances of inner classes).
+     * 
+     * @param cls the class of the instance
+     * @return the estimated size of the instance
+     */
+    public static long instance(Class<?> cls) {
+        int references = 0;
+        int primitives = 0;
+        for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                Class<?> type = field.getType();
+                if (!type.isPrimitive()) {
+                    references++;
+                } else if (type == long.class || type == double.class) {
+                    primitives += 8;
+                } else if (type == int.class || type == float.class) {
+                    primitives += 4;
+                } else if (type == short.class || type == char.class) {
+                    primitives += 2;
+                } else {
+                    primitives += 1;
+                }
+            }
+        }
+        return object(references, primitives);
+    }
+
+    /**
+     * Returns the estimated size of an object with the specified fields.
+     * 
+     * @param references the number of reference fields
+     * @param primitives the total size of primitive fields (in bytes)
+     * @return the estimated size of the object
+     */
+    public static long object(int references, int primitives) {
+        return align(OBJECT_HEADER + references * REFERENCE + primitives);
+    }
+
+    private HeapFootprint() {
+    }
+
+}
@@ -17,7 +17,19 @@
 package org.ubimix.commons.osgi;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.osgi.framework.BundleContext;
 
@@ -27,11 +39,135 @@ import org.ubimix.commons.osgi.ObjectServiceTracker;
  * This class is used to activate multiple object at the same time. For each of
  * managed objects a new instance of the {@link ObjectServiceTracker} is
  * created.
+ * <p>
+ * The order in which managed objects are activated is recorded in the data
+ * area of the bundle (see {@link ActivationHints}). On the next start trackers
+ * are opened in the learned order so providers are activated before objects
+ * waiting for them. Objects unknown in the previous run are opened after all
+ * known objects in the order they were given. Objects with a higher
+ * {@link OSGIObjectPriority} are always opened before objects with lower
+ * priorities; the learned order is used only for objects with the same
+ * priority. Preparation of all objects (see {@link OSGIObjectPrepare}) is
+ * started before trackers are opened; objects which were slow to activate in
+ * the previous run are prepared first. The {@link #open(Executor)} method opens
+ * trackers using an executor; in this case pending objects with higher
+ * priorities are opened first whatever is the order in which the executor
+ * runs submitted tasks.
+ * </p>
+ * <p>
+ * The {@link #getActivationFuture()} and {@link #getDeactivationFuture()}
+ * methods return futures signaling when all managed objects are active and
+ * when all of them are deactivated.
+ * </p>
+ * <p>
+ * The {@link #shutdown()} method is a faster alternative to {@link #close()}
+ * used when the bundle is stopped. It deactivates objects in the reverse
+ * activation order, so all published services are unregistered before any
+ * dependency is released, and then it closes trackers without calling service
+ * deactivators marked as skippable on shutdown.
+ * </p>
  * 
  * @author kotelnikov
  */
 public class MultiServiceTracker {
 
+    /**
+     * The name of the file in the bundle data area used by default to store
+     * activation hints (see {@link #setHintsFile(String)}).
+     */
+    public final static String HINTS_FILE = "ubimix.osgi.activation.properties";
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger
+        .getLogger(MultiServiceTracker.class.getName());
+
+    /**
+     * This future is completed when all managed objects are activated.
+     */
+    private ActivationFuture<MultiServiceTracker> fActivationFuture = new ActivationFuture<MultiServiceTracker>();
+
+    /**
+     * The number of active objects.
+     */
+    private int fActiveCounter;
+
+    /**
+     * This future is completed when all managed objects are deactivated.
+     */
+    private ActivationFuture<MultiServiceTracker> fDeactivationFuture = new ActivationFuture<MultiServiceTracker>();
+
+    /**
+     * The bundle context used to load and store activation hints.
+     */
+    private BundleContext fContext;
+
+    /**
+     * Activation hints recorded in the previous run and updated with
+     * activations observed in the current run. Hints are loaded when this
+     * tracker is opened if they were not set explicitly.
+     */
+    private volatile ActivationHints fHints;
+
+    /**
+     * The name of the file in the bundle data area used to load and store
+     * activation hints of this tracker; if it is <code>null</code> then hints
+     * are learned only in memory.
+     */
+    private String fHintsFile = HINTS_FILE;
+
+    /**
+     * The prefix (with the trailing separator) of keys of managed objects; it
+     * is <code>null</code> if keys are not prefixed.
+     */
+    private String fKeyPrefix;
+
+    /**
+     * Trackers opened (or being opened) since this tracker was opened. Only
+     * these trackers are closed by the {@link #close()} and
+     * {@link #shutdown()} methods. Access to this set is synchronized on the
+     * {@link #fPending} list.
+     */
+    private final Set<ObjectServiceTracker> fOpened = new LinkedHashSet<ObjectServiceTracker>();
+
+    /**
+     * Threads of executor tasks opening trackers. Access to this set is
+     * synchronized on the {@link #fPending} list.
+     */
+    private final Set<Thread> fOpening = new HashSet<Thread>();
+
+    /**
+     * This flag is <code>true</code> if the activation hints were loaded by
+     * this tracker; in this case hints are stored when the tracker is closed.
+     */
+    private boolean fOwnHints;
+
+    /**
+     * This listener records the activation order of managed objects and
+     * updates the aggregated activation state.
+     */
+    private ObjectServiceListener fListener = new ObjectServiceListener() {
+        public void onActivate(ObjectServiceTracker tracker, long duration) {
+            String key = getHintKey(tracker);
+            ActivationHints hints = fHints;
+            if (key != null && hints != null) {
+                hints.record(key, tracker.getActivationStart(), duration);
+            }
+            updateState(1);
+        }
+
+        public void onDeactivate(ObjectServiceTracker tracker, long duration) {
+            updateState(-1);
+        }
+    };
+
+    /**
+     * Trackers waiting to be opened by the executor given to the
+     * {@link #open(Executor)} method. Trackers are sorted in the opening order.
+     */
+    private final LinkedList<ObjectServiceTracker> fPending = new LinkedList<ObjectServiceTracker>();
+
     /**
      * List of trackers activating/deactivating objects.
      */
@@ -41,33 +177,464 @@ public class MultiServiceTracker {
      * @param objects
      */
     public MultiServiceTracker(BundleContext context, Object... objects) {
+        fContext = context;
+        Map<String, Integer> counters = new HashMap<String, Integer>();
         for (Object obj : objects) {
             ObjectServiceTracker tracker = new ObjectServiceTracker(
                 context,
                 obj);
+            String name = obj.getClass().getName();
+            Integer counter = counters.get(name);
+            counter = counter != null ? counter + 1 : 0;
+            counters.put(name, counter);
+            String key = name + "#" + counter;
+            tracker.setKey(key);
+            tracker.addListener(fListener);
             fTrackers.add(tracker);
         }
+        if (fTrackers.isEmpty()) {
+            fActivationFuture.complete(this);
+        }
+        fDeactivationFuture.complete(this);
     }
 
     /**
-     * Closes all underlying trackers.
+     * Closes all opened underlying trackers. Trackers waiting to be opened by
+     * an executor are not opened anymore. The activation order observed since
+     * the tracker was opened is stored in the bundle data area.
      * 
      * @throws Exception
      */
     public void close() throws Exception {
-        for (ObjectServiceTracker tracker : fTrackers) {
+        List<ObjectServiceTracker> opened = stopOpening();
+        storeHints();
+        for (ObjectServiceTracker tracker : opened) {
             tracker.close();
         }
     }
 
     /**
-     * Opens all underlying trackers.
+     * Returns a future completed when all managed objects are activated. If all
+     * objects are already active then the returned future is completed.
+     * 
+     * @return a future completed when all managed objects are activated
+     */
+    public synchronized ActivationFuture<MultiServiceTracker> getActivationFuture() {
+        return fActivationFuture;
+    }
+
+    /**
+     * Returns a future completed when all managed objects are deactivated. If
+     * no objects are active then the returned future is completed.
+     * 
+     * @return a future completed when all managed objects are deactivated
+     */
+    public synchronized ActivationFuture<MultiServiceTracker> getDeactivationFuture() {
+        return fDeactivationFuture;
+    }
+
+    /**
+     * Returns an estimation of the heap size (in bytes) used by all underlying
+     * trackers.
+     * 
+     * @return the estimated heap size used by all underlying trackers
+     * @see ObjectServiceTracker#getFootprint()
+     */
+    public long getFootprint() {
+        long result = 0;
+        for (ObjectServiceTracker tracker : fTrackers) {
+            result += tracker.getFootprint();
+        }
+        return result;
+    }
+
+    /**
+     * Returns estimations of heap sizes (in bytes) used by individual
+     * trackers. Keys of the returned map are keys of managed objects (see
+     * {@link ObjectServiceTracker#getKey()}).
+     * 
+     * @return estimated heap sizes used by individual trackers
+     */
+    public Map<String, Long> getFootprints() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (ObjectServiceTracker tracker : fTrackers) {
+            result.put(tracker.getKey(), tracker.getFootprint());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the key of the object managed by the given tracker used in
+     * activation hints. It is the key of the object without the prefix set
+     * using the {@link #setKeyPrefix(String)} method.
+     * 
+     * @param tracker the tracker
+     * @return the key of the managed object used in activation hints
+     */
+    private String getHintKey(ObjectServiceTracker tracker) {
+        String key = tracker.getKey();
+        if (fKeyPrefix != null && key != null && key.startsWith(fKeyPrefix)) {
+            key = key.substring(fKeyPrefix.length());
+        }
+        return key;
+    }
+
+    /**
+     * Returns a list of trackers in the order in which they should be opened.
+     * Trackers are sorted by their priorities and then by activation positions
+     * learned in the previous run.
+     * 
+     * @return a list of trackers in the order in which they should be opened
+     */
+    private List<ObjectServiceTracker> getOpenOrder() {
+        List<ObjectServiceTracker> result = new ArrayList<ObjectServiceTracker>(
+            fTrackers);
+        Collections.sort(result, new Comparator<ObjectServiceTracker>() {
+            public int compare(ObjectServiceTracker o1, ObjectServiceTracker o2) {
+                int p1 = o1.getPriority();
+                int p2 = o2.getPriority();
+                if (p1 != p2) {
+                    return p1 > p2 ? -1 : 1;
+                }
+                int first = fHints.getPosition(getHintKey(o1));
+                int second = fHints.getPosition(getHintKey(o2));
+                if (first < 0) {
+                    first = Integer.MAX_VALUE;
+                }
+                if (second < 0) {
+                    second = Integer.MAX_VALUE;
+                }
+                return first < second ? -1 : first == second ? 0 : 1;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Loads activation hints from the bundle data area if they were not set
+     * explicitly.
+     */
+    private void loadHints() {
+        if (fHints == null) {
+            fHints = fHintsFile != null ? new ActivationHints(
+                fContext,
+                fHintsFile) : new ActivationHints();
+            fOwnHints = true;
+        }
+    }
+
+    /**
+     * Opens all underlying trackers in the priority and learned activation
+     * order.
      * 
      * @throws Exception
      */
     public void open() throws Exception {
-        for (ObjectServiceTracker tracker : fTrackers) {
+        loadHints();
+        List<ObjectServiceTracker> order = getOpenOrder();
+        prepare(order);
+        for (ObjectServiceTracker tracker : order) {
+            synchronized (fPending) {
+                if (!fOpened.add(tracker)) {
+                    continue;
+                }
+            }
             tracker.open();
         }
     }
+
+    /**
+     * Opens all underlying trackers using the given executor. One task is
+     * submitted to the executor for each tracker, and each task opens the
+     * pending tracker with the highest priority, so critical objects are
+     * activated first even if the executor runs tasks in a different order.
+     * Trackers which are not opened yet are not opened anymore if this tracker
+     * is closed, and tasks remaining in the executor do nothing.
+     * 
+     * @param executor the executor used to open trackers
+     */
+    public void open(Executor executor) {
+        loadHints();
+        List<ObjectServiceTracker> order = getOpenOrder();
+        synchronized (fPending) {
+            order.removeAll(fOpened);
+            order.removeAll(fPending);
+            fPending.addAll(order);
+        }
+        prepare(order);
+        for (int i = 0; i < order.size(); i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    ObjectServiceTracker tracker;
+                    synchronized (fPending) {
+                        tracker = fPending.poll();
+                        if (tracker == null) {
+                            return;
+                        }
+                        fOpened.add(tracker);
+                        fOpening.add(Thread.currentThread());
+                    }
+                    try {
+                        tracker.open();
+                    } catch (Throwable t) {
+                        log.log(Level.WARNING, "Can not open the tracker for "
+                            + tracker.getKey(), t);
+                    } finally {
+                        synchronized (fPending) {
+                            fOpening.remove(Thread.currentThread());
+                            fPending.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts the preparation of managed objects (see {@link OSGIObjectPrepare})
+     * before their trackers are opened. Objects are prepared in the descending
+     * order of their activation durations recorded in the previous run, so
+     * slow objects are prepared first and their preparation overlaps
+     * activations of other objects.
+     * 
+     * @param trackers trackers of prepared objects
+     */
+    private void prepare(List<ObjectServiceTracker> trackers) {
+        List<ObjectServiceTracker> order = new ArrayList<ObjectServiceTracker>(
+            trackers);
+        Collections.sort(order, new Comparator<ObjectServiceTracker>() {
+            public int compare(ObjectServiceTracker o1, ObjectServiceTracker o2) {
+                long first = fHints.getDuration(getHintKey(o1));
+                long second = fHints.getDuration(getHintKey(o2));
+                return first > second ? -1 : first == second ? 0 : 1;
+            }
+        });
+        for (ObjectServiceTracker tracker : order) {
+            tracker.prepare();
+        }
+    }
+
+    /**
+     * Sets activation hints used by this tracker. This method should be called
+     * before the tracker is opened. Hints set using this method are not stored
+     * by this tracker, so they can be shared by multiple trackers managing
+     * objects of the same classes; the owner of these hints is responsible for
+     * storing them.
+     * 
+     * @param hints the activation hints to set
+     */
+    public void setHints(ActivationHints hints) {
+        fHints = hints;
+        fOwnHints = false;
+    }
+
+    /**
+     * Sets the name of the file in the bundle data area used to load and store
+     * activation hints of this tracker. By default it is the
+     * {@link #HINTS_FILE}; each tracker of the same bundle opened together
+     * with others should use its own file. This method should be called
+     * before the tracker is opened and it is ignored if hints are set using
+     * the {@link #setHints(ActivationHints)} method.
+     * 
+     * @param fileName the name of the file with activation hints; if it is
+     *        <code>null</code> then hints are neither loaded nor stored
+     */
+    public void setHintsFile(String fileName) {
+        fHintsFile = fileName;
+    }
+
+    /**
+     * Sets the prefix of keys of all managed objects (see
+     * {@link ObjectServiceTracker#getKey()}). Keys identify states stored by
+     * checkpoint methods (see {@link OSGIObjectCheckpoint}), so trackers
+     * managing objects of the same classes in the same bundle (for example
+     * trackers of factory configurations) should use different prefixes.
+     * Activation hints are recorded with keys without this prefix, so they can
+     * be shared by such trackers. This method should be called before the
+     * tracker is opened.
+     * 
+     * @param prefix the prefix of keys; if it is <code>null</code> then keys
+     *        are not prefixed
+     */
+    public void setKeyPrefix(String prefix) {
+        String newPrefix = prefix != null ? prefix + "/" : null;
+        for (ObjectServiceTracker tracker : fTrackers) {
+            String key = getHintKey(tracker);
+            tracker.setKey(newPrefix != null ? newPrefix + key : key);
+        }
+        fKeyPrefix = newPrefix;
+    }
+
+    /**
+     * Sets the executor used to call preparation methods of all managed
+     * objects. This method should be called before the tracker is opened.
+     * 
+     * @param executor the executor to set; if it is <code>null</code> then
+     *        the shared default executor is used
+     * @see ObjectServiceTracker#setPreparationExecutor(Executor)
+     */
+    public void setPreparationExecutor(Executor executor) {
+        for (ObjectServiceTracker tracker : fTrackers) {
+            tracker.setPreparationExecutor(executor);
+        }
+    }
+
+    /**
+     * Sets a recorder of service events seen by all underlying trackers. This
+     * method should be called before the tracker is opened.
+     * 
+     * @param recorder the recorder to set; if it is <code>null</code> then
+     *        events are not recorded
+     * @see ObjectServiceTracker#setRecorder(ServiceEventRecorder)
+     */
+    public void setRecorder(ServiceEventRecorder recorder) {
+        for (ObjectServiceTracker tracker : fTrackers) {
+            tracker.setRecorder(recorder);
+        }
+    }
+
+    /**
+     * Sets a monitor measuring calls to services published by all managed
+     * objects. This method should be called before the tracker is opened.
+     * 
+     * @param monitor the monitor to set; if it is <code>null</code> then calls
+     *        to published services are not measured
+     * @see ObjectServiceTracker#setServiceMonitor(ServiceCallMonitor)
+     */
+    public void setServiceMonitor(ServiceCallMonitor monitor) {
+        for (ObjectServiceTracker tracker : fTrackers) {
+            tracker.setServiceMonitor(monitor);
+        }
+    }
+
+    /**
+     * Sets a watchdog measuring calls of activators, deactivators and service
+     * callbacks of all managed objects. This method should be called before
+     * the tracker is opened.
+     * 
+     * @param watchdog the watchdog to set; if it is <code>null</code> then
+     *        calls are not measured
+     * @see ObjectServiceTracker#setWatchdog(CallWatchdog)
+     */
+    public void setWatchdog(CallWatchdog watchdog) {
+        for (ObjectServiceTracker tracker : fTrackers) {
+            tracker.setWatchdog(watchdog);
+        }
+    }
+
+    /**
+     * Shuts down all underlying trackers. This method is used when the bundle
+     * is stopped. It deactivates objects in the reverse activation order (so
+     * objects are deactivated before services they depend on) and then closes
+     * trackers.
+     * Objects are not re-activated or deactivated one more time while their
+     * dependencies disappear, and service deactivators marked with the
+     * {@link OSGIServiceDeactivator#skipOnShutdown()} flag are not called.
+     * 
+     * @throws Exception
+     */
+    public void shutdown() throws Exception {
+        List<ObjectServiceTracker> opened = stopOpening();
+        storeHints();
+        for (ObjectServiceTracker tracker : opened) {
+            tracker.setShutdown();
+        }
+        List<ObjectServiceTracker> order = new ArrayList<ObjectServiceTracker>();
+        for (ObjectServiceTracker tracker : opened) {
+            if (tracker.isActive()) {
+                order.add(tracker);
+            }
+        }
+        Collections.sort(order, new Comparator<ObjectServiceTracker>() {
+            public int compare(ObjectServiceTracker o1, ObjectServiceTracker o2) {
+                long first = o1.getActivationStart();
+                long second = o2.getActivationStart();
+                return first > second ? -1 : first == second ? 0 : 1;
+            }
+        });
+        for (ObjectServiceTracker tracker : order) {
+            tracker.deactivate();
+        }
+        for (ObjectServiceTracker tracker : opened) {
+            tracker.close();
+        }
+    }
+
+    /**
+     * Stops opening of trackers by an executor. Trackers waiting to be opened
+     * are removed, and this method waits until trackers being opened by
+     * executor tasks in other threads are opened (the current thread can be
+     * one of them if an object activator closes this tracker). It returns all
+     * opened trackers and forgets them, so they are closed only once.
+     * 
+     * @return a list of opened trackers in the opening order
+     */
+    private List<ObjectServiceTracker> stopOpening() {
+        boolean interrupted = false;
+        try {
+            synchronized (fPending) {
+                fPending.clear();
+                Thread current = Thread.currentThread();
+                while (fOpening.size() > (fOpening.contains(current) ? 1 : 0)) {
+                    try {
+                        fPending.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                List<ObjectServiceTracker> result = new ArrayList<ObjectServiceTracker>(
+                    fOpened);
+                fOpened.clear();
+                return result;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stores activation hints if they were loaded by this tracker.
+     */
+    private void storeHints() {
+        if (fHints != null && fOwnHints) {
+            fHints.store();
+        }
+    }
+
+    /**
+     * Updates the number of active objects and completes the corresponding
+     * aggregated futures.
+     * 
+     * @param delta the change of the number of active objects
+     */
+    private void updateState(int delta) {
+        ActivationFuture<MultiServiceTracker> future = null;
+        synchronized (this) {
+            int size = fTrackers.size();
+            boolean wasActive = fActiveCounter == size;
+            boolean wasInactive = fActiveCounter == 0;
+            fActiveCounter += delta;
+            if (fActiveCounter == size) {
+                future = fActivationFuture;
+                if (wasInactive) {
+                    fDeactivationFuture = new ActivationFuture<MultiServiceTracker>();
+                }
+            } else if (fActiveCounter == 0) {
+                future = fDeactivationFuture;
+                if (wasActive) {
+                    fActivationFuture = new ActivationFuture<MultiServiceTracker>();
+                }
+            } else if (wasActive) {
+                fActivationFuture = new ActivationFuture<MultiServiceTracker>();
+            } else if (wasInactive) {
+                fDeactivationFuture = new ActivationFuture<MultiServiceTracker>();
+            }
+        }
+        if (future != null) {
+            future.complete(this);
+        }
+    }
+
 }
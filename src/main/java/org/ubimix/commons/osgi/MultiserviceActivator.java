@@ -50,7 +50,7 @@ public class MultiserviceActivator implements BundleActivator {
      * @see org.osgi.framework.BundleActivator#stop(org.osgi.framework.BundleContext)
      */
     public void stop(BundleContext context) throws Exception {
-        fTracker.close();
+        fTracker.shutdown();
         fTracker = null;
     }
 
@@ -0,0 +1,50 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation is used to mark a method returning the state of an object
+ * which should survive restarts of the bundle. The method is called when the
+ * object is deactivated (before object deactivators); the returned state
+ * should be {@link java.io.Serializable}. The state is stored in the data area
+ * of the bundle and it is given to the method marked by the
+ * {@link OSGIObjectRestore} annotation when the object is activated again.
+ * 
+ * @author kotelnikov
+ */
+@Retention(value = RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OSGIObjectCheckpoint {
+
+    /**
+     * The maximal size (in bytes) of the stored state. States exceeding this
+     * size are not stored.
+     */
+    long maxSize() default 16 * 1024 * 1024;
+
+    /**
+     * The version of the state format. The stored state is restored only if it
+     * was stored with the same version.
+     */
+    int version() default 0;
+
+}
@@ -0,0 +1,43 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation defines the activation priority of objects of the marked
+ * class. The {@link MultiServiceTracker} opens trackers of objects with higher
+ * priorities first, so critical-path components (like health checks) are not
+ * activated after slow background components. Objects without this annotation
+ * have the priority 0.
+ * 
+ * @author kotelnikov
+ */
+@Retention(value = RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface OSGIObjectPriority {
+
+    /**
+     * The activation priority; objects with higher priorities are activated
+     * first.
+     */
+    int value() default 0;
+
+}
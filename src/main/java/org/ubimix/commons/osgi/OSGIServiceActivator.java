@@ -29,5 +29,21 @@ import java.lang.annotation.Target;
 @Retention(value = RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface OSGIServiceActivator {
+
+    /**
+     * The name of a service property used to index services of this type (see
+     * {@link ObjectServiceTracker#getServiceIndex(Class, String)} or
+     * {@link ObjectServiceTracker#getServiceHandleIndex(Class, String)} if all
+     * methods for this type accept {@link ServiceHandle}s). Services are not
+     * indexed if this value is empty.
+     */
+    String index() default "";
+
     int min() default 1;
+
+    /**
+     * The type of the service. It should be defined for methods accepting
+     * {@link ServiceHandle}s instead of service objects.
+     */
+    Class<?> serviceType() default Object.class;
 }
\ No newline at end of file
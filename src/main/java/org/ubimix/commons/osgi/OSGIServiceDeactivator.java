@@ -30,4 +30,17 @@ import java.lang.annotation.Target;
 @Retention(value = RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface OSGIServiceDeactivator {
+
+    /**
+     * The type of the service. It should be defined for methods accepting
+     * {@link ServiceHandle}s instead of service objects.
+     */
+    Class<?> serviceType() default Object.class;
+
+    /**
+     * If this flag is <code>true</code> then this method is not called when
+     * services are removed because the tracker is shut down (see
+     * {@link MultiServiceTracker#shutdown()}).
+     */
+    boolean skipOnShutdown() default false;
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+/**
+ * Listeners of this type are notified by the {@link ObjectServiceTracker} when
+ * the managed object is activated or deactivated.
+ * 
+ * @author kotelnikov
+ */
+public interface ObjectServiceListener {
+
+    /**
+     * This method is called just after the managed object was activated and
+     * all services provided by this object were registered.
+     * 
+     * @param tracker the tracker managing the activated object
+     * @param duration the time (in nanoseconds) spent in object activation
+     */
+    void onActivate(ObjectServiceTracker tracker, long duration);
+
+    /**
+     * This method is called just after the managed object was deactivated and
+     * all services provided by this object were unregistered.
+     * 
+     * @param tracker the tracker managing the deactivated object
+     * @param duration the time (in nanoseconds) spent in object deactivation
+     */
+    void onDeactivate(ObjectServiceTracker tracker, long duration);
+
+}
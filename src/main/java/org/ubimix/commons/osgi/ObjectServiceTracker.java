@@ -17,14 +17,27 @@
 package org.ubimix.commons.osgi;
 
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,146 +51,522 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
  * This is a multi-service tracker for individual objects. It is used to
  * automatically activate the given object when all required OSGi services are
  * resolved.
+ * <p>
+ * Methods marked by the {@link OSGIObjectPrepare} annotation are called in
+ * background when the tracker is opened. The object is activated when all
+ * required services are resolved and all preparation methods are finished.
+ * </p>
+ * <p>
+ * An object can keep its state across bundle restarts. The method marked by
+ * the {@link OSGIObjectCheckpoint} annotation is called when the object is
+ * deactivated and the returned state is stored in the bundle data area (see
+ * {@link StateCheckpoint}). When the object is activated again the stored
+ * state is given to the method marked by the {@link OSGIObjectRestore}
+ * annotation before object activators are called.
+ * </p>
  * 
  * @author kotelnikov
  */
 public class ObjectServiceTracker {
 
     /**
-     * This helper class is used as a wrapper for individual OSGi service
-     * trackers and it counts the number of registered services. When the number
-     * of required services is more than minimal required then it calls the
-     * {@link ObjectServiceTracker#incReference()} method to notify that a new
-     * service is resolved. The {@link ObjectServiceTracker#decReference()}
-     * method is called to notify that at least one service is missing.
+     * Class-level information about annotated methods. This information is
+     * shared by all trackers managing objects of the same class, so the
+     * methods of a class are analyzed only once. Trackers keep only a
+     * reference to this object and read methods, the priority and the service
+     * type through it. Fields of this class are set while the class is
+     * analyzed; after that all referenced arrays and maps are immutable.
      */
-    private class TrackHelper {
+    private static class ClassInfo {
 
-        private int fCounter = -1;
+        private Method fCheckpointMethod;
 
-        private final int fMinCardinality;
+        private final Dependency[] fDependencies;
 
-        private ServiceTracker fTracker;
+        private Method[] fObjectActivators = EMPTY_METHODS;
 
-        public TrackHelper(final Class<?> type) {
-            fTracker = new ServiceTracker(
-                fContext,
-                type.getName(),
-                new ServiceTrackerCustomizer() {
-                    public Object addingService(ServiceReference reference) {
-                        Object service = fContext.getService(reference);
-                        if (service != null) {
-                            try {
-                                if (callServiceMethod(
-                                    fServiceLoaders,
-                                    reference,
-                                    service)) {
-                                    inc();
-                                }
-                            } catch (Throwable e) {
-                                handle(e, "ERROR! Can not register service "
-                                    + type);
-                            }
-                        }
-                        return service;
-                    }
+        private Method[] fObjectDeactivators = EMPTY_METHODS;
 
-                    protected boolean callServiceMethod(
-                        Map<Class<?>, List<Method>> map,
-                        ServiceReference reference,
-                        Object service) throws Exception {
-                        boolean result = false;
-                        List<Method> methods = map.get(type);
-                        if (methods != null) {
-                            for (Method method : methods) {
-                                if (method.getParameterTypes().length == 2) {
-                                    Map<String, Object> params = getParameters(reference);
-                                    call(method, service, params);
-                                } else {
-                                    call(method, service);
-                                }
-                                result = true;
-                            }
-                        }
-                        return result;
-                    }
+        private Method[] fObjectPreparers = EMPTY_METHODS;
 
-                    private Map<String, Object> getParameters(
-                        ServiceReference reference) {
-                        Map<String, Object> params = new HashMap<String, Object>();
-                        for (String key : reference.getPropertyKeys()) {
-                            Object value = reference.getProperty(key);
-                            params.put(key, value);
-                        }
-                        return params;
-                    }
+        private Method[] fObjectServiceGetters = EMPTY_METHODS;
 
-                    private void handle(Throwable t, String msg) {
-                        if (t instanceof InvocationTargetException) {
-                            t = ((InvocationTargetException) t).getCause();
-                        }
-                        // log.log(Level.SEVERE, msg, t);
-                        if (t instanceof Error) {
-                            throw (Error) t;
-                        } else if (t instanceof RuntimeException) {
-                            throw (RuntimeException) t;
-                        } else {
-                            throw new RuntimeException(t);
-                        }
-                    }
+        private int fPriority;
 
-                    public void modifiedService(
-                        ServiceReference reference,
-                        Object service) {
-                        // try {
-                        // dec();
-                        // inc();
-                        // } catch (Throwable e) {
-                        // handle(e, "ERROR! Can not modify the service "
-                        // + type);
-                        // }
-                    }
+        private Method fRestoreMethod;
 
-                    public void removedService(
-                        ServiceReference reference,
-                        Object service) {
-                        try {
-                            dec();
-                            callServiceMethod(
-                                fServiceUnloaders,
-                                reference,
-                                service);
-                        } catch (Throwable e) {
-                            handle(e, "ERROR! Can not deactivate the service "
-                                + type);
-                        }
-                    }
+        private Map<Class<?>, List<Method>> fServiceLoaders = new HashMap<Class<?>, List<Method>>();
 
-                });
+        private Class<?> fServiceType;
 
-            List<Method> methods = fServiceLoaders.get(type);
-            int minCardinality = -1;
+        private Map<Class<?>, List<Method>> fServiceUnloaders = new HashMap<Class<?>, List<Method>>();
+
+        /**
+         * This constructor analyzes annotations of the given class and of its
+         * public methods.
+         * 
+         * @param cls the class of managed objects
+         */
+        public ClassInfo(Class<?> cls) {
+            OSGIService serviceAnnotation = cls
+                .getAnnotation(OSGIService.class);
+            if (serviceAnnotation != null) {
+                fServiceType = detectServiceType(cls, serviceAnnotation);
+            }
+            OSGIObjectPriority priorityAnnotation = cls
+                .getAnnotation(OSGIObjectPriority.class);
+            if (priorityAnnotation != null) {
+                fPriority = priorityAnnotation.value();
+            }
+            Method[] methods = cls.getMethods();
+            boolean ok = false;
             for (Method method : methods) {
+                ok |= addServiceLoader(method)
+                    || addServiceUnloader(method)
+                    || addObjectActivator(method)
+                    || addObjectDeactivator(method)
+                    || addObjectPreparer(method)
+                    || addCheckpointMethod(method)
+                    || addRestoreMethod(method)
+                    || addObjectService(method);
+            }
+            if (!ok) {
+                log.warning("Class does not contain any services or activators: "
+                    + cls.getName());
+            }
+            if (fRestoreMethod != null && fCheckpointMethod == null) {
+                throw new IllegalArgumentException("The restore method "
+                    + fRestoreMethod.getName()
+                    + " requires a checkpoint method.");
+            }
+            fServiceLoaders = Collections.unmodifiableMap(fServiceLoaders);
+            fServiceUnloaders = Collections.unmodifiableMap(fServiceUnloaders);
+            fDependencies = new Dependency[fServiceLoaders.size()];
+            int i = 0;
+            for (Map.Entry<Class<?>, List<Method>> entry : fServiceLoaders
+                .entrySet()) {
+                Class<?> type = entry.getKey();
+                fDependencies[i++] = new Dependency(
+                    type,
+                    entry.getValue(),
+                    fServiceUnloaders.get(type));
+            }
+        }
+
+        /**
+         * Checks if the given method is a checkpoint method and if it is then
+         * keeps it as the checkpoint method of the managed object.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is a checkpoint method
+         */
+        private boolean addCheckpointMethod(Method method) {
+            if (method.getAnnotation(OSGIObjectCheckpoint.class) == null) {
+                return false;
+            }
+            if (method.getParameterTypes().length > 0) {
+                throw new IllegalArgumentException("The checkpoint method "
+                    + method.getName()
+                    + " can not have arguments.");
+            }
+            if (fCheckpointMethod != null) {
+                throw new IllegalArgumentException(
+                    "Only one checkpoint method is allowed. Methods: "
+                        + fCheckpointMethod.getName()
+                        + ", "
+                        + method.getName());
+            }
+            fCheckpointMethod = method;
+            return true;
+        }
+
+        /**
+         * Checks if the given method is an object activator and if it is then adds
+         * the method to the internal list of object activators.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is an object activator
+         */
+        private boolean addObjectActivator(Method method) {
+            if (method.getAnnotation(OSGIObjectActivator.class) == null) {
+                return false;
+            }
+            Class<?>[] params = method.getParameterTypes();
+            if (params.length > 0) {
+                throw new IllegalArgumentException("The object activator method "
+                    + method.getName()
+                    + " can not have arguments.");
+            }
+            fObjectActivators = append(fObjectActivators, method);
+            return true;
+        }
+
+        /**
+         * Checks if the given method is an object deactivator and if it is then
+         * adds the method to the internal list of deactivators.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is an object deactivator
+         */
+        private boolean addObjectDeactivator(Method method) {
+            if (method.getAnnotation(OSGIObjectDeactivator.class) == null) {
+                return false;
+            }
+            Class<?>[] params = method.getParameterTypes();
+            if (params.length > 0) {
+                throw new IllegalArgumentException("The object deactivator method "
+                    + method.getName()
+                    + " can not have arguments.");
+            }
+            fObjectDeactivators = append(fObjectDeactivators, method);
+            return true;
+        }
+
+        /**
+         * Checks if the given method is an object preparation method and if it is
+         * then adds the method to the internal list of preparers.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is a preparation method
+         */
+        private boolean addObjectPreparer(Method method) {
+            if (method.getAnnotation(OSGIObjectPrepare.class) == null) {
+                return false;
+            }
+            Class<?>[] params = method.getParameterTypes();
+            if (params.length > 0) {
+                throw new IllegalArgumentException("The object preparation method "
+                    + method.getName()
+                    + " can not have arguments.");
+            }
+            fObjectPreparers = append(fObjectPreparers, method);
+            return true;
+        }
+
+        /**
+         * Checks if the given method is getter method returning a service exposed
+         * by the managed object. If so it adds this method to the internal list of
+         * service getters.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is a method returns a
+         *         service exposed by the managed object
+         */
+        private boolean addObjectService(Method method) {
+            if (method.getAnnotation(OSGIService.class) == null) {
+                return false;
+            }
+            Class<?>[] params = method.getParameterTypes();
+            if (params.length > 1) {
+                throw new IllegalArgumentException("The service method "
+                    + method.getName()
+                    + " can not have arguments.");
+            } else if (params.length == 1
+                && !Dictionary.class.isAssignableFrom(params[0])) {
+                throw new IllegalArgumentException(
+                    "Bad service parameters in the method "
+                        + method.getName()
+                        + ". "
+                        + Dictionary.class.getName()
+                        + " is expected.");
+            }
+            fObjectServiceGetters = append(fObjectServiceGetters, method);
+            return true;
+        }
+
+        /**
+         * Checks if the given method is a restore method and if it is then keeps
+         * it as the restore method of the managed object.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is a restore method
+         */
+        private boolean addRestoreMethod(Method method) {
+            if (method.getAnnotation(OSGIObjectRestore.class) == null) {
+                return false;
+            }
+            if (method.getParameterTypes().length != 1) {
+                throw new IllegalArgumentException("The restore method "
+                    + method.getName()
+                    + " should have exactly one argument.");
+            }
+            if (fRestoreMethod != null) {
+                throw new IllegalArgumentException(
+                    "Only one restore method is allowed. Methods: "
+                        + fRestoreMethod.getName()
+                        + ", "
+                        + method.getName());
+            }
+            fRestoreMethod = method;
+            return true;
+        }
+
+        /**
+         * Checks if the given method is a service activator and if it is then it
+         * adds to the internal map of activators.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is a service activator
+         */
+        private boolean addServiceLoader(Method method) {
+            Class<?> type = addServiceMethod(
+                method,
+                fServiceLoaders,
+                OSGIServiceActivator.class);
+            return type != null;
+        }
+
+        /**
+         * This method checks if the given method has a specific annotation and if
+         * so it adds this method to the given map.
+         * 
+         * @param method the method to check
+         * @param map the map of all methods with the same annotation
+         * @param annotationType the type of the annotation to check in the method
+         * @return the type of the service accepted by the given method
+         */
+        private Class<?> addServiceMethod(
+            Method method,
+            Map<Class<?>, List<Method>> map,
+            Class<? extends Annotation> annotationType) {
+            Annotation annotation = method.getAnnotation(annotationType);
+            if (annotation == null) {
+                return null;
+            }
+            Class<?>[] params = method.getParameterTypes();
+            if (!checkServiceMethodParams(params)) {
+                throw new IllegalArgumentException("The method "
+                    + method.getName()
+                    + " has to have the type of the service"
+                    + " and (optionally) a map of service parameters");
+            }
+            Class<?> type = params[0];
+            if (isLazy(method)) {
+                type = annotation instanceof OSGIServiceActivator
+                    ? ((OSGIServiceActivator) annotation).serviceType()
+                    : ((OSGIServiceDeactivator) annotation).serviceType();
+                if (type == Object.class) {
+                    throw new IllegalArgumentException("The method "
+                        + method.getName()
+                        + " accepts service handles; the type of the service"
+                        + " should be defined in the annotation.");
+                }
+            }
+            List<Method> list = map.get(type);
+            if (list == null) {
+                list = new ArrayList<Method>();
+                map.put(type, list);
+            }
+            list.add(method);
+            return type;
+        }
+
+        /**
+         * Checks if the given method is a service deactivator and if it is then it
+         * adds to the internal map of deactivators.
+         * 
+         * @param method the method to check
+         * @return <code>true</code> if the given method is a service deactivator
+         */
+        private boolean addServiceUnloader(Method method) {
+            Class<?> type = addServiceMethod(
+                method,
+                fServiceUnloaders,
+                OSGIServiceDeactivator.class);
+            return type != null;
+        }
+
+    }
+
+    /**
+     * Class-level information about one required service type: service
+     * activators and deactivators accepting services of this type, the minimal
+     * number of required services and the names of indexed properties. This
+     * information is shared by all trackers managing objects of the same
+     * class.
+     */
+    private static class Dependency {
+
+        private final boolean fEager;
+
+        private final String[] fIndexProperties;
+
+        private final Method[] fLoaders;
+
+        private final int fMinCardinality;
+
+        private final Class<?> fType;
+
+        private final Method[] fUnloaders;
+
+        public Dependency(
+            Class<?> type,
+            List<Method> loaders,
+            List<Method> unloaders) {
+            fType = type;
+            fLoaders = toArray(loaders);
+            fUnloaders = toArray(unloaders);
+
+            int minCardinality = -1;
+            List<String> properties = new ArrayList<String>();
+            for (Method method : fLoaders) {
                 OSGIServiceActivator annotation = method
                     .getAnnotation(OSGIServiceActivator.class);
                 int min = annotation != null ? annotation.min() : 0;
                 if (minCardinality < 0 || minCardinality > min) {
                     minCardinality = min;
                 }
+                String property = annotation != null ? annotation.index() : "";
+                if (property.length() > 0 && !properties.contains(property)) {
+                    properties.add(property);
+                }
             }
             if (minCardinality < 0) {
                 minCardinality = 0;
             }
             fMinCardinality = minCardinality;
+            fIndexProperties = properties.isEmpty()
+                ? EMPTY_STRINGS
+                : properties.toArray(new String[properties.size()]);
+
+            boolean eager = false;
+            for (Method method : fLoaders) {
+                eager |= !isLazy(method);
+            }
+            for (Method method : fUnloaders) {
+                eager |= !isLazy(method);
+            }
+            fEager = eager;
         }
+    }
+
+    /**
+     * This helper class is used as a wrapper for individual OSGi service
+     * trackers and it counts the number of registered services. When the number
+     * of required services is more than minimal required then it calls the
+     * {@link ObjectServiceTracker#incReference()} method to notify that a new
+     * service is resolved. The {@link ObjectServiceTracker#decReference()}
+     * method is called to notify that at least one service is missing.
+     * <p>
+     * The helper is the customizer of its own service tracker; all
+     * class-level information is kept in the shared {@link Dependency}
+     * object, and service indexes are allocated only if they are declared by
+     * service activators.
+     * </p>
+     */
+    private class TrackHelper implements ServiceTrackerCustomizer {
+
+        private int fCounter = -1;
+
+        private final Dependency fDependency;
+
+        private final ServiceIndex<Object>[] fIndexes;
 
         /**
-         * Closes the underlying tracker.
+         * This flag is <code>true</code> if the underlying tracker is opened.
+         * It is used to ignore closing of helpers which were never opened and
+         * to not record removals of services reported by the closing tracker.
+         */
+        private volatile boolean fOpen;
+
+        private volatile ServiceEventPublisher fPublisher;
+
+        private final ServiceTracker fTracker;
+
+        @SuppressWarnings("unchecked")
+        public TrackHelper(Dependency dependency) {
+            fDependency = dependency;
+            String[] properties = dependency.fIndexProperties;
+            int count = properties.length;
+            if (count > 0) {
+                fIndexes = (ServiceIndex<Object>[]) new ServiceIndex<?>[count];
+                for (int i = 0; i < count; i++) {
+                    fIndexes[i] = new ServiceIndex<Object>(properties[i]);
+                }
+            } else {
+                fIndexes = null;
+            }
+            fTracker = new ServiceTracker(
+                fContext,
+                dependency.fType.getName(),
+                this);
+        }
+
+        public Object addingService(ServiceReference reference) {
+            record(ServiceEventPublisher.Event.ADDED, reference);
+            ServiceHandle<Object> handle = new ServiceHandle<Object>(
+                fContext,
+                reference);
+            if (fDependency.fEager && handle.get() == null) {
+                return null;
+            }
+            Object service = getValue(handle);
+            try {
+                boolean loaded = callServiceMethod(
+                    fDependency.fLoaders,
+                    reference,
+                    handle);
+                if (fIndexes != null) {
+                    for (ServiceIndex<Object> index : fIndexes) {
+                        index.add(reference, service);
+                    }
+                }
+                if (loaded) {
+                    inc();
+                }
+            } catch (Throwable e) {
+                handle.release();
+                handle(e, "ERROR! Can not register service "
+                    + fDependency.fType);
+            }
+            publish(ServiceEventPublisher.Event.ADDED, reference, handle);
+            return handle;
+        }
+
+        protected boolean callServiceMethod(
+            Method[] methods,
+            ServiceReference reference,
+            ServiceHandle<?> handle) throws Exception {
+            boolean result = false;
+            for (Method method : methods) {
+                if (fShutdown && isSkippedOnShutdown(method)) {
+                    continue;
+                }
+                Object service = isLazy(method) ? handle : handle.get();
+                if (method.getParameterTypes().length == 2) {
+                    Map<String, Object> params = getParameters(reference);
+                    call(method, service, params);
+                } else {
+                    call(method, service);
+                }
+                result = true;
+            }
+            return result;
+        }
+
+        /**
+         * Closes the underlying tracker and completes all subscriptions to
+         * service events. A new publisher is created if the tracker is opened
+         * again. This method does nothing if the tracker is not opened.
          * 
          * @throws Exception
          */
         public void close() throws Exception {
+            synchronized (this) {
+                if (!fOpen) {
+                    return;
+                }
+                fOpen = false;
+            }
             fTracker.close();
+            ServiceEventPublisher publisher;
+            synchronized (this) {
+                publisher = fPublisher;
+                fPublisher = null;
+            }
+            if (publisher != null) {
+                publisher.close();
+            }
             dec();
         }
 
@@ -192,14 +581,128 @@ public class ObjectServiceTracker {
         protected void dec() throws Exception {
             boolean dec = false;
             synchronized (this) {
-                dec = (fCounter == fMinCardinality);
+                dec = (fCounter == fDependency.fMinCardinality);
                 fCounter--;
             }
             if (dec) {
+                TrackerEvents.Sink sink = TrackerEvents.getSink();
+                if (sink != null) {
+                    sink.onDependencyLost(fObject, fDependency.fType);
+                }
                 decReference();
             }
         }
 
+        /**
+         * Returns an estimation of the heap size (in bytes) used by this
+         * helper, by its service tracker and by handles of tracked services.
+         * 
+         * @return the estimated heap size used by this helper
+         */
+        public long getFootprint() {
+            long result = HELPER_SIZE
+                + HeapFootprint.SERVICE_TRACKER
+                + fTracker.size()
+                * HeapFootprint.TRACKED_SERVICE;
+            if (fIndexes != null) {
+                result += HeapFootprint.array(fIndexes.length);
+                result += fIndexes.length * HeapFootprint.SERVICE_INDEX;
+            }
+            return result;
+        }
+
+        /**
+         * Returns the index of services by the specified property or
+         * <code>null</code> if services are not indexed by this property.
+         * 
+         * @param property the name of the indexed property
+         * @return the index of services
+         */
+        public ServiceIndex<Object> getIndex(String property) {
+            if (fIndexes != null) {
+                String[] properties = fDependency.fIndexProperties;
+                for (int i = 0; i < properties.length; i++) {
+                    if (properties[i].equals(property)) {
+                        return fIndexes[i];
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns properties of the specified service reference.
+         * 
+         * @param reference the service reference
+         * @return a map containing all properties of the service reference
+         */
+        private Map<String, Object> getParameters(ServiceReference reference) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            for (String key : reference.getPropertyKeys()) {
+                Object value = reference.getProperty(key);
+                params.put(key, value);
+            }
+            return params;
+        }
+
+        /**
+         * Returns the publisher of events for services tracked by this helper.
+         * The publisher is created on the first call.
+         * 
+         * @return the publisher of service events
+         */
+        public synchronized ServiceEventPublisher getPublisher() {
+            if (fPublisher == null) {
+                ServiceEventPublisher publisher = new ServiceEventPublisher(
+                    fDependency.fType);
+                fPublisher = publisher;
+                ServiceReference[] references = fTracker
+                    .getServiceReferences();
+                if (references != null) {
+                    for (ServiceReference reference : references) {
+                        Object service = fTracker.getService(reference);
+                        if (service != null) {
+                            service = ((ServiceHandle<?>) service).get();
+                            publisher.publish(
+                                ServiceEventPublisher.Event.ADDED,
+                                reference,
+                                service,
+                                getParameters(reference));
+                        }
+                    }
+                }
+            }
+            return fPublisher;
+        }
+
+        /**
+         * Returns the object used to represent the service with the given
+         * handle in indexes. It is the service object itself if at least one
+         * method accepts service objects directly; otherwise the handle is used
+         * so the service object is not obtained from the framework (see
+         * {@link ObjectServiceTracker#getServiceHandleIndex(Class, String)}).
+         * 
+         * @param handle the service handle
+         * @return the service object or the service handle
+         */
+        private Object getValue(ServiceHandle<?> handle) {
+            return fDependency.fEager ? handle.get() : handle;
+        }
+
+        private void handle(Throwable t, String msg) {
+            if (t instanceof InvocationTargetException) {
+                t = ((InvocationTargetException) t).getCause();
+            }
+            // log.log(Level.SEVERE, msg, t);
+            if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else {
+                throw new RuntimeException(t);
+            }
+        }
+
         /**
          * Increments the internal counter and if this counter equals to the
          * minimal cardinality of the service then it calls the
@@ -212,31 +715,207 @@ public class ObjectServiceTracker {
             boolean inc = false;
             synchronized (this) {
                 fCounter++;
-                inc = (fCounter == fMinCardinality);
+                inc = (fCounter == fDependency.fMinCardinality);
             }
             if (inc) {
+                TrackerEvents.Sink sink = TrackerEvents.getSink();
+                if (sink != null) {
+                    sink.onDependencySatisfied(fObject, fDependency.fType);
+                }
                 incReference();
             }
         }
 
+        public void modifiedService(ServiceReference reference, Object handle) {
+            record(ServiceEventPublisher.Event.MODIFIED, reference);
+            Object service = getValue((ServiceHandle<?>) handle);
+            if (fIndexes != null) {
+                for (ServiceIndex<Object> index : fIndexes) {
+                    index.add(reference, service);
+                }
+            }
+            publish(
+                ServiceEventPublisher.Event.MODIFIED,
+                reference,
+                (ServiceHandle<?>) handle);
+            // try {
+            // dec();
+            // inc();
+            // } catch (Throwable e) {
+            // handle(e, "ERROR! Can not modify the service "
+            // + type);
+            // }
+        }
+
         /**
-         * Opens the underlying tracker.
+         * Opens the underlying tracker. This method does nothing if the tracker
+         * is already opened.
          * 
          * @throws Exception
          */
         public void open() throws Exception {
+            synchronized (this) {
+                if (fOpen) {
+                    return;
+                }
+                fOpen = true;
+            }
             inc();
             fTracker.open();
         }
 
+        /**
+         * Publishes the given service event if somebody asked for the
+         * publisher. Events always contain service objects: for lazy
+         * dependencies the service is obtained from the handle only when the
+         * event is really published.
+         * 
+         * @param eventType the type of the event
+         * @param reference the service reference
+         * @param handle the handle of the service
+         */
+        private void publish(
+            int eventType,
+            ServiceReference reference,
+            ServiceHandle<?> handle) {
+            ServiceEventPublisher publisher = fPublisher;
+            if (publisher != null) {
+                publisher.publish(
+                    eventType,
+                    reference,
+                    handle.get(),
+                    getParameters(reference));
+            }
+        }
+
+        /**
+         * Records the given service event if a recorder is set for the
+         * tracker. Removals of services reported when the tracker is closed
+         * are not recorded: services do not disappear in this case.
+         * 
+         * @param eventType the type of the event
+         * @param reference the service reference
+         */
+        private void record(int eventType, ServiceReference reference) {
+            ServiceEventRecorder recorder = fRecorder;
+            boolean closing = !fOpen
+                && eventType == ServiceEventPublisher.Event.REMOVED;
+            if (recorder != null && !closing) {
+                recorder.record(
+                    eventType,
+                    fKey,
+                    fDependency.fType,
+                    reference);
+            }
+        }
+
+        public void removedService(ServiceReference reference, Object service) {
+            record(ServiceEventPublisher.Event.REMOVED, reference);
+            ServiceHandle<?> handle = (ServiceHandle<?>) service;
+            if (fIndexes != null) {
+                for (ServiceIndex<Object> index : fIndexes) {
+                    index.remove(reference);
+                }
+            }
+            try {
+                dec();
+                callServiceMethod(fDependency.fUnloaders, reference, handle);
+            } catch (Throwable e) {
+                handle(e, "ERROR! Can not deactivate the service "
+                    + fDependency.fType);
+            } finally {
+                publish(ServiceEventPublisher.Event.REMOVED, reference, handle);
+                handle.release();
+            }
+        }
+
     }
 
+    /**
+     * The empty array of methods shared by all trackers.
+     */
+    private final static Method[] EMPTY_METHODS = new Method[0];
+
+    /**
+     * The empty array of strings shared by all trackers.
+     */
+    private final static String[] EMPTY_STRINGS = new String[0];
+
+    /**
+     * Class-level information shared by trackers. Values are referenced weakly
+     * (they reference classes used as keys), so the information is kept only
+     * while at least one tracker uses it and classes can be unloaded.
+     */
+    private final static Map<Class<?>, WeakReference<ClassInfo>> fClassInfos = new WeakHashMap<Class<?>, WeakReference<ClassInfo>>();
+
+    /**
+     * The executor used by default to call preparation methods of managed
+     * objects.
+     */
+    private static ThreadPoolExecutor fDefaultPreparationExecutor;
+
+    /**
+     * The estimated size of a helper tracking one service type without
+     * referenced objects. It is computed from declared fields, so it follows
+     * changes of the helper layout.
+     */
+    private final static long HELPER_SIZE = HeapFootprint
+        .instance(TrackHelper.class);
+
     /**
      * The logger used by this class.
      */
     private final static Logger log = Logger
         .getLogger(ObjectServiceTracker.class.getName());
 
+    /**
+     * The time (in milliseconds) after which idle threads of the default
+     * preparation executor are stopped.
+     */
+    private final static long PREPARATION_KEEP_ALIVE = 60000;
+
+    /**
+     * The estimated size of a tracker without referenced objects. It is
+     * computed from declared fields, so it follows changes of the tracker
+     * layout.
+     */
+    private final static long TRACKER_SIZE = HeapFootprint
+        .instance(ObjectServiceTracker.class);
+
+    /**
+     * This flag is <code>true</code> when the activation of the managed object
+     * is finished and the object is not deactivated yet. It defines the state
+     * of activation futures created on demand; access to this field is
+     * synchronized on this tracker.
+     */
+    private boolean fActivated;
+
+    /**
+     * This future is completed when the managed object is activated. It is
+     * created only when it is requested (see {@link #getActivationFuture()})
+     * and it is reset each time the object is deactivated.
+     */
+    private ActivationFuture<Object> fActivationFuture;
+
+    /**
+     * The time (in nanoseconds) when the last activation of the managed object
+     * started.
+     */
+    private volatile long fActivationStart;
+
+    /**
+     * This flag is <code>true</code> when the managed object is activated.
+     */
+    private volatile boolean fActive;
+
+    /**
+     * Shared class-level information: annotated methods, the priority and the
+     * service type of the managed object. It is the only class-level data
+     * referenced by this tracker; this reference also keeps the shared
+     * information in the cache while this tracker exists.
+     */
+    private final ClassInfo fClassInfo;
+
     /**
      * The bundle context used to register trackers.
      */
@@ -249,59 +928,110 @@ public class ObjectServiceTracker {
      */
     private int fCounter;
 
+    /**
+     * This future is completed when the managed object is deactivated. It is
+     * created only when it is requested (see {@link #getDeactivationFuture()})
+     * and it is reset each time the object is activated.
+     */
+    private ActivationFuture<Object> fDeactivationFuture;
+
+    /**
+     * The key identifying the managed object in the bundle data area (in
+     * activation hints and stored states). By default it is the name of the
+     * object class.
+     */
+    private String fKey;
+
+    /**
+     * Listeners notified about activation/deactivation of the managed object.
+     * The array is replaced each time a listener is added or removed; it is
+     * <code>null</code> if there are no listeners.
+     */
+    private volatile ObjectServiceListener[] fListeners;
+
     /**
      * The object to activate.
      */
     private Object fObject;
 
     /**
-     * The list of object activator methods. These methods are called when all
-     * required services are resolved.
+     * The preparation of the managed object started when this tracker was
+     * opened (or before, see {@link #prepare()}). The object is activated only
+     * when this task is finished. It is reset when the tracker is closed.
      */
-    private List<Method> fObjectActivators = new ArrayList<Method>();
+    private volatile FutureTask<Object> fPreparation;
 
     /**
-     * List of deactivator methods. These methods are called when at least one
-     * required service is disapered
+     * The executor used to call preparation methods of the managed object. If
+     * it is <code>null</code> then the default executor is used.
      */
-    private List<Method> fObjectDeactivators = new ArrayList<Method>();
+    private volatile Executor fPreparationExecutor;
 
     /**
-     * The list of methods returning services provided by the managed object.
-     * These methods are called when all required services are resolved just
-     * after the object is activated.
+     * The recorder of service events seen by this tracker. If it is
+     * <code>null</code> then events are not recorded.
      */
-    private List<Method> fObjectServiceGetters = new ArrayList<Method>();
+    private volatile ServiceEventRecorder fRecorder;
 
     /**
      * This map contains methods used to set services of a specific type in the
-     * configured object.
+     * configured object. The map is shared by all trackers managing objects
+     * of the same class and it can not be modified.
+     * 
+     * @deprecated use the {@link #getServiceLoaders()} method
      */
-    protected Map<Class<?>, List<Method>> fServiceLoaders = new HashMap<Class<?>, List<Method>>();
+    @Deprecated
+    protected Map<Class<?>, List<Method>> fServiceLoaders;
+
+    /**
+     * The monitor measuring calls to services published by the managed object.
+     * If it is <code>null</code> then services are registered as is.
+     */
+    private volatile ServiceCallMonitor fServiceMonitor = ServiceCallMonitor
+        .getDefault();
 
     /**
      * The service registration returned by the OSGi framework when the managed
      * object is registered as a service. This field is not empty if the
-     * {@link #fServiceType} is not <code>null</code> and the object is really
-     * registered as a service.
+     * object declares a service type (see {@link OSGIService}) and it is really
+     * registered as a service. The list is created when the first service is
+     * registered and it is removed when services are unregistered.
+     */
+    private List<ServiceRegistration> fServiceRegistrations;
+
+    /**
+     * This map contains remove methods which are used to notify that a service
+     * was unregistered. The map is shared by all trackers managing objects of
+     * the same class and it can not be modified.
+     * 
+     * @deprecated use the {@link #getServiceUnloaders()} method
      */
-    private List<ServiceRegistration> fServiceRegistrations = new ArrayList<ServiceRegistration>();
+    @Deprecated
+    protected Map<Class<?>, List<Method>> fServiceUnloaders;
 
     /**
-     * The service interface implemented by the managed object.
+     * This flag is <code>true</code> when this tracker is shut down. In this
+     * mode the managed object is not activated or deactivated when services
+     * appear or disappear and service deactivators marked with the
+     * {@link OSGIServiceDeactivator#skipOnShutdown()} flag are not called.
      */
-    private Class<?> fServiceType;
+    private volatile boolean fShutdown;
 
     /**
-     * This map contains remove methods which are used to notify that a service
-     * was unregistered.
+     * Trackers associated with service setters in the managed object. This
+     * private array is also the lock serializing updates of the service
+     * counter with activations and deactivations of the managed object:
+     * trackers of a {@link MultiServiceTracker} can be opened concurrently,
+     * so services can appear and disappear in different threads.
      */
-    protected Map<Class<?>, List<Method>> fServiceUnloaders = new HashMap<Class<?>, List<Method>>();
+    private final TrackHelper[] fTrackers;
 
     /**
-     * List of trackers associated with service setters in the managed object.
+     * The watchdog measuring calls of activators, deactivators and service
+     * callbacks of the managed object. If it is <code>null</code> then calls
+     * are not measured (see {@link CallWatchdog#getDefault()}).
      */
-    private List<TrackHelper> fTrackers = new ArrayList<TrackHelper>();
+    private volatile CallWatchdog fWatchdog = CallWatchdog.getDefault();
 
     /**
      * This constructor initializes the internal list of service setter methods
@@ -316,167 +1046,131 @@ public class ObjectServiceTracker {
         fObject = object;
 
         Class<?> cls = fObject.getClass();
-        OSGIService serviceAnnotation = cls.getAnnotation(OSGIService.class);
-        if (serviceAnnotation != null) {
-            fServiceType = detectServiceType(
-                fObject.getClass(),
-                serviceAnnotation);
-        }
-        Method[] methods = cls.getMethods();
-        boolean ok = false;
-        for (Method method : methods) {
-            ok |= addServiceLoader(method)
-                || addServiceUnloader(method)
-                || addObjectActivator(method)
-                || addObjectDeactivator(method)
-                || addObjectService(method);
-        }
-        if (ok) {
-            for (Class<?> type : fServiceLoaders.keySet()) {
-                TrackHelper helper = new TrackHelper(type);
-                fTrackers.add(helper);
+        ClassInfo info = getClassInfo(cls);
+        if (info == null) {
+            info = new ClassInfo(cls);
+            synchronized (fClassInfos) {
+                fClassInfos.put(cls, new WeakReference<ClassInfo>(info));
             }
-        } else {
-            log.warning("Class does not contain any services or activators: "
-                + cls.getName());
+        }
+        fClassInfo = info;
+        fServiceLoaders = info.fServiceLoaders;
+        fServiceUnloaders = info.fServiceUnloaders;
+        fKey = cls.getName();
+        Dependency[] dependencies = info.fDependencies;
+        fTrackers = new TrackHelper[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            fTrackers[i] = new TrackHelper(dependencies[i]);
         }
     }
 
     /**
-     * Checks if the given method is an object activator and if it is then adds
-     * the method to the internal list of object activators.
+     * Returns the shared information about annotated methods of the given
+     * class or <code>null</code> if this class was not analyzed yet (or if no
+     * trackers use this information anymore).
      * 
-     * @param method the method to check
-     * @return <code>true</code> if the given method is an object activator
+     * @param cls the class of managed objects
+     * @return the shared class information
      */
-    private boolean addObjectActivator(Method method) {
-        if (method.getAnnotation(OSGIObjectActivator.class) == null) {
-            return false;
+    private static ClassInfo getClassInfo(Class<?> cls) {
+        synchronized (fClassInfos) {
+            WeakReference<ClassInfo> ref = fClassInfos.get(cls);
+            return ref != null ? ref.get() : null;
         }
-        Class<?>[] params = method.getParameterTypes();
-        if (params.length > 0) {
-            throw new IllegalArgumentException("The object activator method "
-                + method.getName()
-                + " can not have arguments.");
-        }
-        fObjectActivators.add(method);
-        return true;
     }
 
     /**
-     * Checks if the given method is an object deactivator and if it is then
-     * adds the method to the internal list of deactivators.
+     * Returns the executor used by default to call preparation methods of
+     * managed objects. It is a pool of daemon threads; the number of threads
+     * is limited by the number of available processors. Idle threads are
+     * stopped after {@link #PREPARATION_KEEP_ALIVE} milliseconds, so the pool
+     * does not keep any threads when there is nothing to prepare (for example
+     * after the bundle using this class is stopped).
      * 
-     * @param method the method to check
-     * @return <code>true</code> if the given method is an object deactivator
+     * @return the default preparation executor
      */
-    private boolean addObjectDeactivator(Method method) {
-        if (method.getAnnotation(OSGIObjectDeactivator.class) == null) {
-            return false;
-        }
-        Class<?>[] params = method.getParameterTypes();
-        if (params.length > 0) {
-            throw new IllegalArgumentException("The object deactivator method "
-                + method.getName()
-                + " can not have arguments.");
-        }
-        fObjectDeactivators.add(method);
-        return true;
-    }
+    private synchronized static Executor getDefaultPreparationExecutor() {
+        if (fDefaultPreparationExecutor == null) {
+            int size = Runtime.getRuntime().availableProcessors();
+            fDefaultPreparationExecutor = new ThreadPoolExecutor(
+                size,
+                size,
+                PREPARATION_KEEP_ALIVE,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger fCounter = new AtomicInteger();
 
-    /**
-     * Checks if the given method is getter method returning a service exposed
-     * by the managed object. If so it adds this method to the internal list of
-     * service getters.
-     * 
-     * @param method the method to check
-     * @return <code>true</code> if the given method is a method returns a
-     *         service exposed by the managed object
-     */
-    private boolean addObjectService(Method method) {
-        if (method.getAnnotation(OSGIService.class) == null) {
-            return false;
-        }
-        Class<?>[] params = method.getParameterTypes();
-        if (params.length > 1) {
-            throw new IllegalArgumentException("The service method "
-                + method.getName()
-                + " can not have arguments.");
-        } else if (params.length == 1
-            && !Dictionary.class.isAssignableFrom(params[0])) {
-            throw new IllegalArgumentException(
-                "Bad service parameters in the method "
-                    + method.getName()
-                    + ". "
-                    + Dictionary.class.getName()
-                    + " is expected.");
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ObjectServiceTracker-"
+                            + fCounter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            fDefaultPreparationExecutor.allowCoreThreadTimeOut(true);
         }
-        fObjectServiceGetters.add(method);
-        return true;
+        return fDefaultPreparationExecutor;
     }
 
     /**
-     * Checks if the given method is a service activator and if it is then it
-     * adds to the internal map of activators.
+     * Returns a new array containing all methods of the given array and the
+     * specified method.
      * 
-     * @param method the method to check
-     * @return <code>true</code> if the given method is a service activator
+     * @param methods the array of methods
+     * @param method the method to add
+     * @return a new array of methods
      */
-    private boolean addServiceLoader(Method method) {
-        Class<?> type = addServiceMethod(
-            method,
-            fServiceLoaders,
-            OSGIServiceActivator.class);
-        return type != null;
+    private static Method[] append(Method[] methods, Method method) {
+        Method[] result = new Method[methods.length + 1];
+        System.arraycopy(methods, 0, result, 0, methods.length);
+        result[methods.length] = method;
+        return result;
     }
 
     /**
-     * This method checks if the given method has a specific annotation and if
-     * so it adds this method to the given map.
+     * Adds a new listener notified about activation/deactivation of the managed
+     * object.
      * 
-     * @param method the method to check
-     * @param map the map of all methods with the same annotation
-     * @param annotationType the type of the annotation to check in the method
-     * @return the type of the service accepted by the given method
-     */
-    private Class<?> addServiceMethod(
-        Method method,
-        Map<Class<?>, List<Method>> map,
-        Class<? extends Annotation> annotationType) {
-        Annotation annotation = method.getAnnotation(annotationType);
-        if (annotation == null) {
-            return null;
-        }
-        Class<?>[] params = method.getParameterTypes();
-        if (!checkServiceMethodParams(params)) {
-            throw new IllegalArgumentException("The method "
-                + method.getName()
-                + " has to have the type of the service"
-                + " and (optionally) a map of service parameters");
-        }
-        Class<?> type = params[0];
-        List<Method> list = map.get(type);
-        if (list == null) {
-            list = new ArrayList<Method>();
-            map.put(type, list);
+     * @param listener the listener to add
+     */
+    public synchronized void addListener(ObjectServiceListener listener) {
+        ObjectServiceListener[] listeners = fListeners;
+        int length = listeners != null ? listeners.length : 0;
+        ObjectServiceListener[] result = new ObjectServiceListener[length + 1];
+        if (listeners != null) {
+            System.arraycopy(listeners, 0, result, 0, length);
         }
-        list.add(method);
-        return type;
+        result[length] = listener;
+        fListeners = result;
     }
 
     /**
-     * Checks if the given method is a service deactivator and if it is then it
-     * adds to the internal map of deactivators.
+     * Waits until the preparation of the managed object started by the
+     * {@link #open()} method is finished.
      * 
-     * @param method the method to check
-     * @return <code>true</code> if the given method is a service deactivator
+     * @throws Exception if a preparation method failed
      */
-    private boolean addServiceUnloader(Method method) {
-        Class<?> type = addServiceMethod(
-            method,
-            fServiceUnloaders,
-            OSGIServiceDeactivator.class);
-        return type != null;
+    private void awaitPreparation() throws Exception {
+        FutureTask<Object> preparation = fPreparation;
+        if (preparation == null) {
+            return;
+        }
+        try {
+            preparation.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvocationTargetException) {
+                cause = ((InvocationTargetException) cause).getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
     }
 
     /**
@@ -489,16 +1183,59 @@ public class ObjectServiceTracker {
      */
     private Object call(Method method, Object... params) throws Exception {
         if (method != null) {
-            return method.invoke(fObject, params);
+            CallWatchdog watchdog = fWatchdog;
+            TrackerEvents.Sink sink = TrackerEvents.getSink();
+            if (watchdog == null && sink == null) {
+                return method.invoke(fObject, params);
+            }
+            CallWatchdog.Call call = watchdog != null ? watchdog.begin(
+                fObject,
+                method) : null;
+            long start = System.nanoTime();
+            try {
+                return method.invoke(fObject, params);
+            } finally {
+                if (call != null) {
+                    watchdog.end(call);
+                }
+                if (sink != null) {
+                    sink.onCallback(fObject, method, start, System.nanoTime()
+                        - start);
+                }
+            }
         }
         return null;
     }
 
-    private boolean checkServiceMethodParams(Class<?>[] params) {
+    private static boolean checkServiceMethodParams(Class<?>[] params) {
         return (params.length == 1)
             || (params.length == 2 && Map.class.isAssignableFrom(params[1]));
     }
 
+    /**
+     * Stores the state of the managed object returned by its checkpoint method
+     * in the bundle data area. Errors are logged and ignored: the state is
+     * just a cache, so the object can be deactivated without it.
+     */
+    private void checkpoint() {
+        Method method = fClassInfo.fCheckpointMethod;
+        if (method == null) {
+            return;
+        }
+        OSGIObjectCheckpoint annotation = method
+            .getAnnotation(OSGIObjectCheckpoint.class);
+        try {
+            Object state = call(method);
+            new StateCheckpoint(fContext, fKey).store(
+                annotation.version(),
+                state,
+                annotation.maxSize());
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Can not checkpoint the state of "
+                + fObject, e);
+        }
+    }
+
     /**
      * Closes this tracker. This method deactivates the managed object and
      * closes all underlying trackers.
@@ -506,13 +1243,14 @@ public class ObjectServiceTracker {
      * @throws Exception
      */
     public void close() throws Exception {
-        if (fTrackers.isEmpty()) {
+        if (fTrackers.length == 0) {
             decReference();
         } else {
             for (TrackHelper tracker : fTrackers) {
                 tracker.close();
             }
         }
+        fPreparation = null;
     }
 
     /**
@@ -523,17 +1261,55 @@ public class ObjectServiceTracker {
      *         object deactivation
      */
     private void decReference() throws Exception {
-        if (fCounter == fTrackers.size()) {
-            for (ServiceRegistration r : fServiceRegistrations) {
-                r.unregister();
+        synchronized (fTrackers) {
+            if (fCounter == fTrackers.length && !fShutdown) {
+                deactivate();
             }
-            fServiceRegistrations.clear();
-            for (Method deactivator : fObjectDeactivators) {
-                call(deactivator);
+            if (fCounter > 0) {
+                fCounter--;
             }
         }
-        if (fCounter > 0) {
-            fCounter--;
+    }
+
+    /**
+     * Deactivates the managed object if it is active. This method unregisters
+     * all services provided by the object and calls object deactivators.
+     * 
+     * @throws Exception an exception can be rised if something goes wrong with
+     *         object deactivation
+     */
+    void deactivate() throws Exception {
+        synchronized (fTrackers) {
+            if (!fActive) {
+                return;
+            }
+            fActive = false;
+            long start = System.nanoTime();
+            unregisterServices();
+            checkpoint();
+            for (Method deactivator : fClassInfo.fObjectDeactivators) {
+                call(deactivator);
+            }
+            long duration = System.nanoTime() - start;
+            ActivationFuture<Object> future;
+            synchronized (this) {
+                fActivated = false;
+                future = fDeactivationFuture;
+                fActivationFuture = null;
+            }
+            if (future != null) {
+                future.complete(fObject);
+            }
+            TrackerEvents.Sink sink = TrackerEvents.getSink();
+            if (sink != null) {
+                sink.onDeactivation(fObject, start, duration);
+            }
+            ObjectServiceListener[] listeners = fListeners;
+            if (listeners != null) {
+                for (ObjectServiceListener listener : listeners) {
+                    listener.onDeactivate(this, duration);
+                }
+            }
         }
     }
 
@@ -549,7 +1325,7 @@ public class ObjectServiceTracker {
      * @return the type of the specified service corresponding to the given
      *         annotation
      */
-    private Class<?> detectServiceType(
+    private static Class<?> detectServiceType(
         Class<? extends Object> serviceType,
         OSGIService serviceAnnotation) {
         Class<?> annotationType = serviceAnnotation.serviceType();
@@ -574,6 +1350,268 @@ public class ObjectServiceTracker {
         return annotationType;
     }
 
+
+    /**
+     * Returns the time (in nanoseconds, see {@link System#nanoTime()}) when
+     * the last activation of the managed object started.
+     * 
+     * @return the time when the last activation started
+     */
+    public long getActivationStart() {
+        return fActivationStart;
+    }
+
+    /**
+     * Returns a future completed when the managed object is activated. If the
+     * object is already active then the returned future is completed.
+     * 
+     * @return a future completed when the managed object is activated
+     */
+    public synchronized ActivationFuture<Object> getActivationFuture() {
+        if (fActivationFuture == null) {
+            fActivationFuture = new ActivationFuture<Object>();
+            if (fActivated) {
+                fActivationFuture.complete(fObject);
+            }
+        }
+        return fActivationFuture;
+    }
+
+    /**
+     * Returns a future completed when the managed object is deactivated. If the
+     * object is not active then the returned future is completed.
+     * 
+     * @return a future completed when the managed object is deactivated
+     */
+    public synchronized ActivationFuture<Object> getDeactivationFuture() {
+        if (fDeactivationFuture == null) {
+            fDeactivationFuture = new ActivationFuture<Object>();
+            if (!fActivated) {
+                fDeactivationFuture.complete(fObject);
+            }
+        }
+        return fDeactivationFuture;
+    }
+
+    /**
+     * Returns an estimation of the heap size (in bytes) used by this tracker
+     * and by its service trackers. The estimation does not include the
+     * managed object, service objects and class-level information shared by
+     * all trackers managing objects of the same class (see
+     * {@link HeapFootprint}).
+     * 
+     * @return the estimated heap size used by this tracker
+     */
+    public long getFootprint() {
+        long result = TRACKER_SIZE;
+        result += HeapFootprint.array(fTrackers.length);
+        for (TrackHelper tracker : fTrackers) {
+            result += tracker.getFootprint();
+        }
+        synchronized (this) {
+            if (fActivationFuture != null) {
+                result += HeapFootprint.ACTIVATION_FUTURE;
+            }
+            if (fDeactivationFuture != null) {
+                result += HeapFootprint.ACTIVATION_FUTURE;
+            }
+        }
+        ObjectServiceListener[] listeners = fListeners;
+        if (listeners != null) {
+            result += HeapFootprint.array(listeners.length);
+        }
+        List<ServiceRegistration> registrations = fServiceRegistrations;
+        if (registrations != null) {
+            result += HeapFootprint.LIST
+                + HeapFootprint.array(registrations.size());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the helper tracking services of the specified type or
+     * <code>null</code> if the managed object does not depend on these
+     * services.
+     * 
+     * @param type the type of tracked services
+     * @return the helper tracking services of the specified type
+     */
+    private TrackHelper getHelper(Class<?> type) {
+        for (TrackHelper tracker : fTrackers) {
+            if (tracker.fDependency.fType.equals(type)) {
+                return tracker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the key identifying the managed object in the bundle data area.
+     * 
+     * @return the key of the managed object
+     */
+    public String getKey() {
+        return fKey;
+    }
+
+    /**
+     * Returns the object managed by this tracker.
+     * 
+     * @return the object managed by this tracker
+     */
+    public Object getObject() {
+        return fObject;
+    }
+
+    /**
+     * Returns the executor used to call preparation methods of the managed
+     * object.
+     * 
+     * @return the executor used to call preparation methods
+     */
+    public Executor getPreparationExecutor() {
+        Executor executor = fPreparationExecutor;
+        return executor != null ? executor : getDefaultPreparationExecutor();
+    }
+
+    /**
+     * Returns the activation priority of the managed object defined by the
+     * {@link OSGIObjectPriority} annotation on its class.
+     * 
+     * @return the activation priority of the managed object
+     */
+    public int getPriority() {
+        return fClassInfo.fPriority;
+    }
+
+    /**
+     * Returns a publisher of arrivals, modifications and departures of services
+     * of the specified type tracked by this object or <code>null</code> if the
+     * managed object does not depend on services of this type.
+     * 
+     * @param type the type of tracked services
+     * @return a publisher of service events for the specified service type
+     */
+    public ServiceEventPublisher getPublisher(Class<?> type) {
+        TrackHelper tracker = getHelper(type);
+        return tracker != null ? tracker.getPublisher() : null;
+    }
+
+    /**
+     * Returns the recorder of service events seen by this tracker or
+     * <code>null</code> if events are not recorded.
+     * 
+     * @return the recorder of service events
+     */
+    public ServiceEventRecorder getRecorder() {
+        return fRecorder;
+    }
+
+    /**
+     * Returns methods used to set services of a specific type in the managed
+     * object. The returned map is shared by all trackers managing objects of
+     * the same class and it can not be modified.
+     * 
+     * @return service activators of the managed object by service types
+     */
+    protected Map<Class<?>, List<Method>> getServiceLoaders() {
+        return fClassInfo.fServiceLoaders;
+    }
+
+    /**
+     * Returns the monitor measuring calls to services published by the managed
+     * object or <code>null</code> if these calls are not measured.
+     * 
+     * @return the monitor measuring calls to published services
+     */
+    public ServiceCallMonitor getServiceMonitor() {
+        return fServiceMonitor;
+    }
+
+    /**
+     * Returns methods used to notify the managed object that a service of a
+     * specific type was unregistered. The returned map is shared by all
+     * trackers managing objects of the same class and it can not be modified.
+     * 
+     * @return service deactivators of the managed object by service types
+     */
+    protected Map<Class<?>, List<Method>> getServiceUnloaders() {
+        return fClassInfo.fServiceUnloaders;
+    }
+
+    /**
+     * Returns an index of service handles of the specified type by values of
+     * the given property. This method is used when all service activators and
+     * deactivators for this type accept {@link ServiceHandle}s; in this case
+     * the index contains handles and service objects are not obtained until
+     * they are really used.
+     * 
+     * @param type the type of indexed services
+     * @param property the name of the indexed property
+     * @return an index of service handles or <code>null</code> if services of
+     *         this type are not indexed by the specified property
+     * @throws IllegalStateException if at least one method accepts service
+     *         objects of this type directly; in this case the
+     *         {@link #getServiceIndex(Class, String)} method should be used
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ServiceIndex<ServiceHandle<T>> getServiceHandleIndex(
+        Class<T> type,
+        String property) {
+        TrackHelper tracker = getHelper(type);
+        if (tracker == null) {
+            return null;
+        }
+        if (tracker.fDependency.fEager) {
+            throw new IllegalStateException("Services of the type "
+                + type.getName()
+                + " are indexed by service objects;"
+                + " use the getServiceIndex method.");
+        }
+        return (ServiceIndex<ServiceHandle<T>>) (ServiceIndex<?>) tracker
+            .getIndex(property);
+    }
+
+    /**
+     * Returns an index of services of the specified type by values of the
+     * given property. The index is available only if at least one service
+     * activator method for this type declares the property in the
+     * {@link OSGIServiceActivator#index()} attribute.
+     * 
+     * @param type the type of indexed services
+     * @param property the name of the indexed property
+     * @return an index of services or <code>null</code> if services of this
+     *         type are not indexed by the specified property
+     * @throws IllegalStateException if all methods accepting services of this
+     *         type are lazy; in this case the index contains service handles
+     *         and the {@link #getServiceHandleIndex(Class, String)} method
+     *         should be used
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ServiceIndex<T> getServiceIndex(Class<T> type, String property) {
+        TrackHelper tracker = getHelper(type);
+        if (tracker == null) {
+            return null;
+        }
+        if (!tracker.fDependency.fEager) {
+            throw new IllegalStateException("Services of the type "
+                + type.getName()
+                + " are bound lazily and indexed by service handles;"
+                + " use the getServiceHandleIndex method.");
+        }
+        return (ServiceIndex<T>) (ServiceIndex<?>) tracker.getIndex(property);
+    }
+
+    /**
+     * Returns the watchdog measuring calls of methods of the managed object or
+     * <code>null</code> if these calls are not measured.
+     * 
+     * @return the watchdog measuring calls of methods of the managed object
+     */
+    public CallWatchdog getWatchdog() {
+        return fWatchdog;
+    }
+
     /**
      * Increments the counter of available required services. When all services
      * are resolved (when the internal counter equals to the number of trackers)
@@ -583,58 +1621,114 @@ public class ObjectServiceTracker {
      *         object activation
      */
     private void incReference() throws Exception {
-        int size = fTrackers.size();
-        if (fCounter < size) {
-            fCounter++;
-        }
-        if (fCounter == size) {
-            for (Method activator : fObjectActivators) {
-                call(activator);
-            }
-            fServiceRegistrations.clear();
-            if (fServiceType != null) {
-                ServiceRegistration r = fContext.registerService(
-                    fServiceType.getName(),
-                    fObject,
-                    null);
-                fServiceRegistrations.add(r);
-            }
-            for (Method method : fObjectServiceGetters) {
-                try {
-                    OSGIService serviceAnnotation = method
-                        .getAnnotation(OSGIService.class);
-                    Object service = null;
-                    Dictionary<?, ?> dictionary = new Hashtable<Object, Object>();
-                    if (method.getParameterTypes().length == 1) {
-                        service = call(method, dictionary);
-                    } else {
-                        service = call(method);
+        synchronized (fTrackers) {
+            int size = fTrackers.length;
+            if (fCounter < size) {
+                fCounter++;
+            }
+            if (fCounter == size && !fActive && !fShutdown) {
+                long start = System.nanoTime();
+                fActivationStart = start;
+                // The object is not marked as active if the preparation failed;
+                // it is never activated (nor deactivated) until it is reopened
+                awaitPreparation();
+                fActive = true;
+                restore();
+                for (Method activator : fClassInfo.fObjectActivators) {
+                    call(activator);
+                }
+                if (fClassInfo.fServiceType != null) {
+                    registerService(fClassInfo.fServiceType, fObject, null);
+                }
+                for (Method method : fClassInfo.fObjectServiceGetters) {
+                    try {
+                        OSGIService serviceAnnotation = method
+                            .getAnnotation(OSGIService.class);
+                        Object service = null;
+                        Dictionary<?, ?> dictionary = new Hashtable<Object, Object>();
+                        if (method.getParameterTypes().length == 1) {
+                            service = call(method, dictionary);
+                        } else {
+                            service = call(method);
+                        }
+                        Class<?> serviceType = detectServiceType(
+                            method.getReturnType(),
+                            serviceAnnotation);
+                        registerService(serviceType, service, dictionary);
+                    } catch (Exception e) {
+                        log.log(
+                            Level.WARNING,
+                            "Can not register the returned service",
+                            e);
+                    }
+                }
+                long duration = System.nanoTime() - start;
+                ActivationFuture<Object> future;
+                synchronized (this) {
+                    fActivated = true;
+                    future = fActivationFuture;
+                    fDeactivationFuture = null;
+                }
+                if (future != null) {
+                    future.complete(fObject);
+                }
+                TrackerEvents.Sink sink = TrackerEvents.getSink();
+                if (sink != null) {
+                    sink.onActivation(fObject, start, duration);
+                }
+                ObjectServiceListener[] listeners = fListeners;
+                if (listeners != null) {
+                    for (ObjectServiceListener listener : listeners) {
+                        listener.onActivate(this, duration);
                     }
-                    Class<?> serviceType = detectServiceType(
-                        method.getReturnType(),
-                        serviceAnnotation);
-                    ServiceRegistration r = fContext.registerService(
-                        serviceType.getName(),
-                        service,
-                        dictionary);
-                    fServiceRegistrations.add(r);
-                } catch (Exception e) {
-                    log.log(
-                        Level.WARNING,
-                        "Can not register the returned service",
-                        e);
                 }
             }
         }
     }
 
+    /**
+     * Returns <code>true</code> if the given service activator/deactivator
+     * method accepts {@link ServiceHandle}s instead of service objects.
+     * 
+     * @param method the method to check
+     * @return <code>true</code> if the method binds services lazily
+     */
+    private static boolean isLazy(Method method) {
+        return ServiceHandle.class.equals(method.getParameterTypes()[0]);
+    }
+
+    /**
+     * Returns <code>true</code> if the given service deactivator method should
+     * not be called when the tracker is shut down.
+     * 
+     * @param method the method to check
+     * @return <code>true</code> if the method is skipped on shutdown
+     */
+    private static boolean isSkippedOnShutdown(Method method) {
+        OSGIServiceDeactivator annotation = method
+            .getAnnotation(OSGIServiceDeactivator.class);
+        return annotation != null && annotation.skipOnShutdown();
+    }
+
+    /**
+     * Returns <code>true</code> if the managed object is activated (if all
+     * required services are resolved).
+     * 
+     * @return <code>true</code> if the managed object is activated
+     */
+    public boolean isActive() {
+        return fActive;
+    }
+
     /**
      * Opens all underlying trackers.
      * 
      * @throws Exception
      */
     public void open() throws Exception {
-        if (fTrackers.isEmpty()) {
+        fShutdown = false;
+        prepare();
+        if (fTrackers.length == 0) {
             incReference();
         } else {
             for (TrackHelper tracker : fTrackers) {
@@ -643,4 +1737,240 @@ public class ObjectServiceTracker {
         }
     }
 
+    /**
+     * Starts the preparation of the managed object if it is not started yet.
+     * All preparation methods are called in background using the preparation
+     * executor, so they run while required services are resolved. If the
+     * executor rejects the task then preparation methods are called in the
+     * current thread. The preparation is started only once until the tracker
+     * is closed, so it can be started before the tracker is opened (see
+     * {@link MultiServiceTracker#open()}).
+     */
+    void prepare() {
+        if (fClassInfo.fObjectPreparers.length == 0) {
+            return;
+        }
+        FutureTask<Object> preparation;
+        synchronized (this) {
+            if (fPreparation != null) {
+                return;
+            }
+            preparation = new FutureTask<Object>(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (Method preparer : fClassInfo.fObjectPreparers) {
+                        ObjectServiceTracker.this.call(preparer);
+                    }
+                    return fObject;
+                }
+            });
+            fPreparation = preparation;
+        }
+        try {
+            getPreparationExecutor().execute(preparation);
+        } catch (RejectedExecutionException e) {
+            preparation.run();
+        }
+    }
+
+    /**
+     * Registers a service provided by the managed object. If a service monitor
+     * is set for this tracker then an instrumented proxy of the service is
+     * registered. If a recorder is set then the registration is recorded, so
+     * the service is not registered again when the log is replayed together
+     * with the managed object.
+     * 
+     * @param type the service interface
+     * @param service the service object
+     * @param properties the service properties
+     */
+    private void registerService(
+        Class<?> type,
+        Object service,
+        Dictionary<?, ?> properties) {
+        long start = System.nanoTime();
+        ServiceCallMonitor monitor = fServiceMonitor;
+        if (monitor != null) {
+            service = monitor.wrap(type, service);
+        }
+        ServiceRegistration r = fContext.registerService(
+            type.getName(),
+            service,
+            properties);
+        if (fServiceRegistrations == null) {
+            fServiceRegistrations = new ArrayList<ServiceRegistration>(1);
+        }
+        fServiceRegistrations.add(r);
+        ServiceEventRecorder recorder = fRecorder;
+        if (recorder != null) {
+            recorder.recordRegistration(r.getReference());
+        }
+        TrackerEvents.Sink sink = TrackerEvents.getSink();
+        if (sink != null) {
+            sink.onServiceRegistration(
+                fObject,
+                type.getName(),
+                start,
+                System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Removes the specified activation/deactivation listener.
+     * 
+     * @param listener the listener to remove
+     */
+    public synchronized void removeListener(ObjectServiceListener listener) {
+        ObjectServiceListener[] listeners = fListeners;
+        if (listeners == null) {
+            return;
+        }
+        int length = listeners.length - 1;
+        for (int i = 0; i <= length; i++) {
+            if (listeners[i].equals(listener)) {
+                if (length == 0) {
+                    fListeners = null;
+                } else {
+                    ObjectServiceListener[] result = new ObjectServiceListener[length];
+                    System.arraycopy(listeners, 0, result, 0, i);
+                    System.arraycopy(listeners, i + 1, result, i, length - i);
+                    fListeners = result;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Restores the state of the managed object stored by the checkpoint method
+     * and calls the restore method of the object. The stored state is removed
+     * from the bundle data area, so it is never restored twice.
+     */
+    private void restore() {
+        Method method = fClassInfo.fRestoreMethod;
+        if (method == null) {
+            return;
+        }
+        OSGIObjectCheckpoint annotation = fClassInfo.fCheckpointMethod
+            .getAnnotation(OSGIObjectCheckpoint.class);
+        Object state = new StateCheckpoint(fContext, fKey).restore(
+            annotation.version(),
+            annotation.maxSize(),
+            fObject.getClass().getClassLoader());
+        if (state == null || !method.getParameterTypes()[0].isInstance(state)) {
+            return;
+        }
+        try {
+            call(method, state);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Can not restore the state of " + fObject, e);
+        }
+    }
+
+    /**
+     * Sets the key identifying the managed object in the bundle data area (in
+     * activation hints and stored states). This method should be called before
+     * the tracker is opened. It is used when multiple objects of the same
+     * class are managed.
+     * 
+     * @param key the key to set
+     */
+    public void setKey(String key) {
+        fKey = key;
+    }
+
+    /**
+     * Sets the executor used to call preparation methods of the managed
+     * object. If the executor is <code>null</code> then a shared pool of
+     * daemon threads is used.
+     * 
+     * @param executor the executor to set
+     */
+    public void setPreparationExecutor(Executor executor) {
+        fPreparationExecutor = executor;
+    }
+
+    /**
+     * Sets a recorder of service events seen by this tracker. This method
+     * should be called before the tracker is opened.
+     * 
+     * @param recorder the recorder to set; if it is <code>null</code> then
+     *        events are not recorded
+     */
+    public void setRecorder(ServiceEventRecorder recorder) {
+        fRecorder = recorder;
+    }
+
+    /**
+     * Sets a monitor measuring calls to services published by the managed
+     * object. This method should be called before the object is activated.
+     * If the monitor is <code>null</code> then services are registered as is.
+     * 
+     * @param monitor the monitor to set
+     */
+    public void setServiceMonitor(ServiceCallMonitor monitor) {
+        fServiceMonitor = monitor;
+    }
+
+    /**
+     * Sets a new watchdog measuring calls of activators, deactivators and
+     * service callbacks of the managed object. If the watchdog is
+     * <code>null</code> then calls are not measured.
+     * 
+     * @param watchdog the watchdog to set
+     */
+    public void setWatchdog(CallWatchdog watchdog) {
+        fWatchdog = watchdog;
+    }
+
+    /**
+     * Switches this tracker in the shutdown mode. In this mode the managed
+     * object is not activated or deactivated when services appear or
+     * disappear, and service deactivators marked with the
+     * {@link OSGIServiceDeactivator#skipOnShutdown()} flag are not called.
+     */
+    void setShutdown() {
+        fShutdown = true;
+    }
+
+    /**
+     * Shuts down this tracker. This method deactivates the managed object (and
+     * unregisters services provided by this object) and then closes all
+     * underlying trackers without calling service deactivators marked with
+     * the {@link OSGIServiceDeactivator#skipOnShutdown()} flag.
+     * 
+     * @throws Exception
+     */
+    public void shutdown() throws Exception {
+        setShutdown();
+        deactivate();
+        close();
+    }
+
+    /**
+     * Returns an array containing methods from the given list. If the list is
+     * <code>null</code> or empty then the shared empty array is returned.
+     * 
+     * @param methods the list of methods
+     * @return an array of methods
+     */
+    private static Method[] toArray(List<Method> methods) {
+        return methods == null || methods.isEmpty()
+            ? EMPTY_METHODS
+            : methods.toArray(new Method[methods.size()]);
+    }
+
+    /**
+     * Unregisters all services provided by the managed object.
+     */
+    private void unregisterServices() {
+        List<ServiceRegistration> registrations = fServiceRegistrations;
+        if (registrations == null) {
+            return;
+        }
+        fServiceRegistrations = null;
+        for (ServiceRegistration r : registrations) {
+            r.unregister();
+        }
+    }
+
 }
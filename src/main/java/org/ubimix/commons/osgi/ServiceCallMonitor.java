@@ -0,0 +1,202 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class measures calls of consumers to services published by objects
+ * managed by {@link ObjectServiceTracker}s. When a monitor is set for a
+ * tracker then services published by the managed object (see
+ * {@link OSGIService}) are registered as instrumented proxies. Each proxy
+ * counts calls of individual methods of the service interface and records
+ * their durations in {@link CallStatistics} available using the
+ * {@link #getStatistics()} method.
+ * <p>
+ * Only services published with a public interface type are instrumented; other
+ * services are registered as is. Proxy classes are generated once for each
+ * service interface and they are shared by all monitors. Methods declared by
+ * the {@link Object} class are not measured.
+ * </p>
+ * <p>
+ * Monitoring is disabled by default. It is enabled for all trackers if the
+ * {@value #ENABLED_PROPERTY} system property is <code>true</code>; in this
+ * case all trackers use the default instance returned by the
+ * {@link #getInstance()} method.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ServiceCallMonitor {
+
+    /**
+     * This handler forwards calls to the service object and measures them.
+     */
+    private class Handler implements InvocationHandler {
+
+        private final Object fService;
+
+        public Handler(Object service) {
+            fService = service;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+            boolean measured = method.getDeclaringClass() != Object.class;
+            long start = System.nanoTime();
+            try {
+                return method.invoke(fService, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (measured) {
+                    getStatistics(method).record(
+                        System.nanoTime() - start,
+                        false,
+                        null);
+                }
+            }
+        }
+    }
+
+    /**
+     * The name of the system property enabling the default monitor for all
+     * trackers.
+     */
+    public final static String ENABLED_PROPERTY = "org.ubimix.commons.osgi.monitor";
+
+    private static ServiceCallMonitor fInstance;
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger
+        .getLogger(ServiceCallMonitor.class.getName());
+
+    /**
+     * Returns the monitor used by trackers by default. It is the default
+     * instance if the {@value #ENABLED_PROPERTY} system property is
+     * <code>true</code> and <code>null</code> otherwise.
+     * 
+     * @return the monitor used by trackers by default
+     */
+    public static ServiceCallMonitor getDefault() {
+        return Boolean.getBoolean(ENABLED_PROPERTY) ? getInstance() : null;
+    }
+
+    /**
+     * Returns the default monitor instance.
+     * 
+     * @return the default monitor
+     */
+    public synchronized static ServiceCallMonitor getInstance() {
+        if (fInstance == null) {
+            fInstance = new ServiceCallMonitor();
+        }
+        return fInstance;
+    }
+
+    /**
+     * Statistics of individual methods of service interfaces. Methods are
+     * referenced weakly, so statistics do not prevent unloading of service
+     * interfaces and their proxy classes.
+     */
+    private final Map<Method, CallStatistics> fStatistics = new WeakHashMap<Method, CallStatistics>();
+
+    /**
+     * Returns the name of the given method used in statistics.
+     * 
+     * @param method the method
+     * @return the name of the method
+     */
+    private String getName(Method method) {
+        return method.getDeclaringClass().getName() + "#" + method.getName();
+    }
+
+    /**
+     * Returns statistics of all measured methods.
+     * 
+     * @return statistics of all measured methods
+     */
+    public List<CallStatistics> getStatistics() {
+        List<CallStatistics> result;
+        synchronized (fStatistics) {
+            result = new ArrayList<CallStatistics>(fStatistics.values());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns statistics of the specified method.
+     * 
+     * @param method the method
+     * @return statistics of the specified method
+     */
+    public CallStatistics getStatistics(Method method) {
+        synchronized (fStatistics) {
+            CallStatistics statistics = fStatistics.get(method);
+            if (statistics == null) {
+                statistics = new CallStatistics(getName(method));
+                fStatistics.put(method, statistics);
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * Returns an instrumented proxy for the given service. If the service type
+     * is not a public interface or if the service does not implement it then
+     * this method returns the service itself.
+     * 
+     * @param type the type of the service
+     * @param service the service object
+     * @return an instrumented proxy or the service object
+     */
+    public Object wrap(Class<?> type, Object service) {
+        if (!type.isInterface()
+            || !Modifier.isPublic(type.getModifiers())
+            || !type.isInstance(service)) {
+            return service;
+        }
+        try {
+            // Proxy classes are cached by the Proxy class itself
+            Class<?> proxyClass = Proxy.getProxyClass(
+                type.getClassLoader(),
+                type);
+            Constructor<?> constructor = proxyClass
+                .getConstructor(InvocationHandler.class);
+            return constructor.newInstance(new Handler(service));
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Can not instrument the service "
+                + type.getName(), e);
+            return service;
+        }
+    }
+
+}
@@ -0,0 +1,572 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This class publishes arrivals, modifications and departures of services of
+ * one type tracked by an {@link ObjectServiceTracker} as a stream of
+ * {@link Event} objects. It follows the contract of reactive streams: events
+ * are delivered to a {@link Subscriber} only when they are requested using the
+ * {@link Subscription#request(long)} method, and they are delivered by an
+ * executor and not by the framework thread notifying about service changes.
+ * <p>
+ * Each subscription has a bounded buffer of pending events. Pending events for
+ * the same service reference are conflated: a removal cancels a pending
+ * arrival and a modification replaces a pending arrival or modification. If the
+ * buffer overflows then the subscription is cancelled and the subscriber is
+ * notified using the {@link Subscriber#onError(Throwable)} method.
+ * </p>
+ * <p>
+ * New subscribers receive arrival events for all services already available.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ServiceEventPublisher {
+
+    /**
+     * Service events delivered to subscribers.
+     */
+    public static class Event {
+
+        /**
+         * The service was added.
+         */
+        public final static int ADDED = 1;
+
+        /**
+         * The properties of the service were modified.
+         */
+        public final static int MODIFIED = 2;
+
+        /**
+         * The service was removed.
+         */
+        public final static int REMOVED = 3;
+
+        private final Map<String, Object> fProperties;
+
+        private final ServiceReference fReference;
+
+        private final Object fService;
+
+        private final int fType;
+
+        public Event(
+            int type,
+            ServiceReference reference,
+            Object service,
+            Map<String, Object> properties) {
+            fType = type;
+            fReference = reference;
+            fService = service;
+            fProperties = properties;
+        }
+
+        /**
+         * Returns the properties of the service at the moment of this event.
+         * 
+         * @return the properties of the service
+         */
+        public Map<String, Object> getProperties() {
+            return fProperties;
+        }
+
+        /**
+         * Returns the reference of the service.
+         * 
+         * @return the reference of the service
+         */
+        public ServiceReference getReference() {
+            return fReference;
+        }
+
+        /**
+         * Returns the service object.
+         * 
+         * @return the service object
+         */
+        public Object getService() {
+            return fService;
+        }
+
+        /**
+         * Returns the type of this event ({@link #ADDED}, {@link #MODIFIED} or
+         * {@link #REMOVED}).
+         * 
+         * @return the type of this event
+         */
+        public int getType() {
+            return fType;
+        }
+
+        @Override
+        public String toString() {
+            String type = fType == ADDED ? "ADDED" : fType == MODIFIED
+                ? "MODIFIED"
+                : "REMOVED";
+            return type + ":" + fProperties;
+        }
+    }
+
+    /**
+     * Receivers of service events.
+     */
+    public interface Subscriber {
+
+        /**
+         * Called when the subscription is completed by the publisher.
+         */
+        void onComplete();
+
+        /**
+         * Called when the subscription is terminated because of an error.
+         * 
+         * @param error the error
+         */
+        void onError(Throwable error);
+
+        /**
+         * Called for each requested event.
+         * 
+         * @param event the service event
+         */
+        void onNext(Event event);
+
+        /**
+         * Called once before any other method of the subscriber.
+         * 
+         * @param subscription the subscription used to request events
+         */
+        void onSubscribe(Subscription subscription);
+    }
+
+    /**
+     * Subscriptions are used by subscribers to request new events and to stop
+     * receiving events.
+     */
+    public interface Subscription {
+
+        /**
+         * Cancels this subscription. No events are delivered after this call.
+         */
+        void cancel();
+
+        /**
+         * Requests the specified number of events.
+         * 
+         * @param n the number of events to request
+         */
+        void request(long n);
+    }
+
+    /**
+     * The implementation of subscriptions. The delivery of events is serialized
+     * using a "work in progress" counter, so only one thread of the executor
+     * delivers events to the subscriber at a time.
+     */
+    private class SubscriptionImpl implements Subscription, Runnable {
+
+        private final int fCapacity;
+
+        private boolean fCancelled;
+
+        private boolean fCompleted;
+
+        private long fDemand;
+
+        private Throwable fError;
+
+        private final Executor fExecutor;
+
+        private final LinkedList<Event> fQueue = new LinkedList<Event>();
+
+        private boolean fStarted;
+
+        private final Subscriber fSubscriber;
+
+        private final AtomicInteger fWip = new AtomicInteger();
+
+        public SubscriptionImpl(
+            Subscriber subscriber,
+            Executor executor,
+            int capacity) {
+            fSubscriber = subscriber;
+            fExecutor = executor;
+            fCapacity = capacity;
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                fCancelled = true;
+                fQueue.clear();
+            }
+            fSubscriptions.remove(this);
+        }
+
+        /**
+         * Marks this subscription as completed.
+         */
+        void complete() {
+            synchronized (this) {
+                fCompleted = true;
+            }
+            schedule();
+        }
+
+        /**
+         * Adds the given event to the queue of pending events and conflates it
+         * with pending events for the same service reference.
+         * 
+         * @param event the event to add
+         * @param bounded if this flag is <code>true</code> then the capacity of
+         *        the buffer is checked
+         */
+        void offer(Event event, boolean bounded) {
+            synchronized (this) {
+                if (fCancelled || fCompleted) {
+                    return;
+                }
+                if (conflate(event)) {
+                    return;
+                }
+                if (bounded && fQueue.size() >= fCapacity) {
+                    fCancelled = true;
+                    fQueue.clear();
+                    fError = new IllegalStateException(
+                        "The buffer of service events is full ("
+                            + fCapacity
+                            + " events).");
+                } else {
+                    fQueue.add(event);
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Conflates the given event with pending events for the same
+         * reference. Returns <code>true</code> if the event should not be
+         * added to the queue.
+         * 
+         * @param event the event to conflate
+         * @return <code>true</code> if the event was merged with a pending
+         *         event
+         */
+        private boolean conflate(Event event) {
+            if (event.getType() == Event.ADDED) {
+                return false;
+            }
+            ListIterator<Event> iterator = fQueue.listIterator();
+            while (iterator.hasNext()) {
+                Event pending = iterator.next();
+                if (pending.getReference() != event.getReference()
+                    || pending.getType() == Event.REMOVED) {
+                    continue;
+                }
+                if (event.getType() == Event.REMOVED) {
+                    iterator.remove();
+                    return pending.getType() == Event.ADDED;
+                }
+                iterator.set(new Event(
+                    pending.getType(),
+                    event.getReference(),
+                    event.getService(),
+                    event.getProperties()));
+                return true;
+            }
+            return false;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    fCancelled = true;
+                    fQueue.clear();
+                    fError = new IllegalArgumentException(
+                        "The number of requested events should be positive.");
+                }
+            } else {
+                synchronized (this) {
+                    fDemand += n;
+                    if (fDemand < 0) {
+                        fDemand = Long.MAX_VALUE;
+                    }
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Delivers pending events to the subscriber while there is a demand.
+         */
+        public void run() {
+            int missed = 1;
+            while (true) {
+                while (true) {
+                    Event event = null;
+                    Throwable error = null;
+                    boolean complete = false;
+                    boolean subscribe = false;
+                    synchronized (this) {
+                        if (!fStarted) {
+                            fStarted = true;
+                            subscribe = true;
+                        } else if (fError != null) {
+                            error = fError;
+                            fError = null;
+                        } else if (fCancelled) {
+                            break;
+                        } else if (fDemand > 0 && !fQueue.isEmpty()) {
+                            event = fQueue.removeFirst();
+                            fDemand--;
+                        } else if (fCompleted && fQueue.isEmpty()) {
+                            complete = true;
+                            fCancelled = true;
+                        } else {
+                            break;
+                        }
+                    }
+                    try {
+                        if (subscribe) {
+                            fSubscriber.onSubscribe(this);
+                        } else if (error != null) {
+                            fSubscriptions.remove(this);
+                            fSubscriber.onError(error);
+                        } else if (complete) {
+                            fSubscriptions.remove(this);
+                            fSubscriber.onComplete();
+                        } else {
+                            fSubscriber.onNext(event);
+                        }
+                    } catch (Throwable t) {
+                        log.log(Level.WARNING, "Service event subscriber "
+                            + "failed; the subscription is cancelled.", t);
+                        cancel();
+                    }
+                }
+                missed = fWip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Schedules the delivery of pending events.
+         */
+        void schedule() {
+            if (fWip.getAndIncrement() == 0) {
+                fExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Starts this subscription. The subscriber is notified about the new
+         * subscription by the executor before any other event.
+         * 
+         * @param snapshot events for all services available at the moment of
+         *        subscription
+         */
+        void start(List<Event> snapshot) {
+            synchronized (this) {
+                fQueue.addAll(snapshot);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * The default capacity of subscription buffers.
+     */
+    public final static int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The executor used by default to deliver events to subscribers.
+     */
+    private static ExecutorService fDefaultExecutor;
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger
+        .getLogger(ServiceEventPublisher.class.getName());
+
+    /**
+     * Returns the executor used by default to deliver events to subscribers. It
+     * is a pool of daemon threads created on demand.
+     * 
+     * @return the default executor
+     */
+    private synchronized static Executor getDefaultExecutor() {
+        if (fDefaultExecutor == null) {
+            fDefaultExecutor = Executors
+                .newCachedThreadPool(new ThreadFactory() {
+                    private final AtomicInteger fCounter = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ServiceEventPublisher-"
+                            + fCounter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return fDefaultExecutor;
+    }
+
+    /**
+     * The capacity of subscription buffers.
+     */
+    private final int fCapacity;
+
+    /**
+     * All currently available services.
+     */
+    private final Map<ServiceReference, Event> fServices = new LinkedHashMap<ServiceReference, Event>();
+
+    /**
+     * Active subscriptions.
+     */
+    private final List<SubscriptionImpl> fSubscriptions = new CopyOnWriteArrayList<SubscriptionImpl>();
+
+    /**
+     * The type of published services.
+     */
+    private final Class<?> fType;
+
+    /**
+     * @param type the type of published services
+     */
+    public ServiceEventPublisher(Class<?> type) {
+        this(type, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param type the type of published services
+     * @param capacity the maximal number of pending events for each
+     *        subscription
+     */
+    public ServiceEventPublisher(Class<?> type, int capacity) {
+        fType = type;
+        fCapacity = capacity;
+    }
+
+    /**
+     * Completes all subscriptions. Subscribers are notified using the
+     * {@link Subscriber#onComplete()} method after all pending events are
+     * delivered.
+     */
+    public void close() {
+        for (SubscriptionImpl subscription : fSubscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Returns the type of published services.
+     * 
+     * @return the type of published services
+     */
+    public Class<?> getType() {
+        return fType;
+    }
+
+    /**
+     * Publishes a new service event to all subscribers.
+     * 
+     * @param type the type of the event
+     * @param reference the service reference
+     * @param service the service object
+     * @param properties the properties of the service
+     */
+    public void publish(
+        int type,
+        ServiceReference reference,
+        Object service,
+        Map<String, Object> properties) {
+        Event event = new Event(
+            type,
+            reference,
+            service,
+            Collections.unmodifiableMap(new HashMap<String, Object>(properties)));
+        synchronized (fServices) {
+            if (type == Event.REMOVED) {
+                fServices.remove(reference);
+            } else {
+                fServices.put(reference, new Event(
+                    Event.ADDED,
+                    reference,
+                    service,
+                    event.getProperties()));
+            }
+            for (SubscriptionImpl subscription : fSubscriptions) {
+                subscription.offer(event, true);
+            }
+        }
+    }
+
+    /**
+     * Subscribes the given subscriber. Events are delivered using a default
+     * pool of daemon threads.
+     * 
+     * @param subscriber the subscriber to add
+     */
+    public void subscribe(Subscriber subscriber) {
+        subscribe(subscriber, getDefaultExecutor());
+    }
+
+    /**
+     * Subscribes the given subscriber. Events are delivered using the specified
+     * executor.
+     * 
+     * @param subscriber the subscriber to add
+     * @param executor the executor used to deliver events
+     */
+    public void subscribe(Subscriber subscriber, Executor executor) {
+        SubscriptionImpl subscription = new SubscriptionImpl(
+            subscriber,
+            executor,
+            fCapacity);
+        List<Event> snapshot;
+        synchronized (fServices) {
+            snapshot = new ArrayList<Event>(fServices.values());
+            fSubscriptions.add(subscription);
+            subscription.start(snapshot);
+        }
+    }
+
+}
@@ -0,0 +1,426 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This class records service events seen by customizers of
+ * {@link ObjectServiceTracker}s in a compact binary log. Recorded logs are
+ * replayed offline by the {@link ServiceEventReplayer} against an isolated
+ * bundle context. A recorder is set for trackers using the
+ * {@link ObjectServiceTracker#setRecorder(ServiceEventRecorder)} or
+ * {@link MultiServiceTracker#setRecorder(ServiceEventRecorder)} methods; the
+ * same recorder can be shared by multiple trackers.
+ * <p>
+ * The log starts with the {@link #MAGIC} number, the format {@link #VERSION}
+ * and the time (in milliseconds) when the recording started. It is followed
+ * by records starting with a tag:
+ * </p>
+ * <ul>
+ * <li>{@link #TAG_STRING} - defines a new string: the string identifier and
+ * the string itself. Strings (thread names, object keys, service types,
+ * property names and string values) are written only once and then they are
+ * referenced by identifiers.</li>
+ * <li>{@link #TAG_EVENT} - one service event: the event type (see
+ * {@link ServiceEventPublisher.Event}), the time elapsed since the previous
+ * event (in nanoseconds; for the first event, since the recording started),
+ * the thread name, the key of the tracked object, the
+ * tracked service type, the service identifier and service properties.
+ * Removals of services reported while trackers are closed are not recorded:
+ * they do not mean that services disappeared.</li>
+ * <li>{@link #TAG_REGISTRATION} - the identifier of a service registered by a
+ * tracked object. Such services are not registered by the
+ * {@link ServiceEventReplayer}: they are published again by the replayed
+ * objects themselves.</li>
+ * </ul>
+ * <p>
+ * Integer numbers are written using a variable-length encoding (7 bits per
+ * byte), so small numbers take one byte. Strings are written as the length of
+ * their UTF-8 representation followed by UTF-8 bytes. Recording errors are logged once and
+ * then the recorder is disabled; they are never propagated to trackers.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ServiceEventRecorder {
+
+    /**
+     * The number starting each log.
+     */
+    public final static int MAGIC = 0x55534556;
+
+    /**
+     * The tag of service event records.
+     */
+    public final static int TAG_EVENT = 1;
+
+    /**
+     * The tag of registrations of services provided by tracked objects.
+     */
+    public final static int TAG_REGISTRATION = 2;
+
+    /**
+     * The tag of string definitions.
+     */
+    public final static int TAG_STRING = 0;
+
+    /**
+     * The encoding of strings.
+     */
+    final static String UTF8 = "UTF-8";
+
+    /**
+     * Value tag: <code>Boolean</code>.
+     */
+    final static int VALUE_BOOLEAN = 4;
+
+    /**
+     * Value tag: <code>Double</code>.
+     */
+    final static int VALUE_DOUBLE = 5;
+
+    /**
+     * Value tag: <code>Integer</code>.
+     */
+    final static int VALUE_INTEGER = 2;
+
+    /**
+     * Value tag: <code>Long</code>.
+     */
+    final static int VALUE_LONG = 3;
+
+    /**
+     * Value tag: <code>null</code>.
+     */
+    final static int VALUE_NULL = 0;
+
+    /**
+     * Value tag: any other object recorded as a string.
+     */
+    final static int VALUE_OTHER = 7;
+
+    /**
+     * Value tag: <code>String</code>.
+     */
+    final static int VALUE_STRING = 1;
+
+    /**
+     * Value tag: <code>String[]</code>.
+     */
+    final static int VALUE_STRINGS = 6;
+
+    /**
+     * The version of the log format.
+     */
+    public final static int VERSION = 2;
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger
+        .getLogger(ServiceEventRecorder.class.getName());
+
+    /**
+     * The number of recorded events.
+     */
+    private long fEventCount;
+
+    /**
+     * This flag is <code>true</code> if the recorder is closed or if it failed
+     * to write the log.
+     */
+    private boolean fFailed;
+
+    /**
+     * The time (in nanoseconds) of the last recorded event.
+     */
+    private long fLastTime;
+
+    /**
+     * The stream of the log.
+     */
+    private final DataOutputStream fOut;
+
+    /**
+     * Identifiers of strings already written in the log.
+     */
+    private final Map<String, Integer> fStrings = new HashMap<String, Integer>();
+
+    /**
+     * This constructor creates a new log in the specified file.
+     * 
+     * @param file the file of the log
+     * @throws IOException if the file can not be created
+     */
+    public ServiceEventRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * This constructor writes the log in the given stream. The stream is
+     * closed when the recorder is closed.
+     * 
+     * @param out the stream of the log
+     * @throws IOException if the header of the log can not be written
+     */
+    public ServiceEventRecorder(OutputStream out) throws IOException {
+        fOut = new DataOutputStream(new BufferedOutputStream(out));
+        fOut.writeInt(MAGIC);
+        fOut.writeShort(VERSION);
+        fOut.writeLong(System.currentTimeMillis());
+        fLastTime = System.nanoTime();
+    }
+
+    /**
+     * Closes the log. Events recorded after this method call are ignored.
+     */
+    public synchronized void close() {
+        if (fFailed) {
+            return;
+        }
+        fFailed = true;
+        try {
+            fOut.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can not close the service event log", e);
+        }
+    }
+
+    /**
+     * Flushes recorded events to the underlying stream.
+     */
+    public synchronized void flush() {
+        if (fFailed) {
+            return;
+        }
+        try {
+            fOut.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Disables this recorder after a write error.
+     * 
+     * @param e the write error
+     */
+    private void fail(IOException e) {
+        fFailed = true;
+        log.log(Level.WARNING, "Can not record service events", e);
+        try {
+            fOut.close();
+        } catch (IOException t) {
+            // Just ignore it
+        }
+    }
+
+    /**
+     * Returns the number of recorded events.
+     * 
+     * @return the number of recorded events
+     */
+    public synchronized long getEventCount() {
+        return fEventCount;
+    }
+
+    /**
+     * Records one service event.
+     * 
+     * @param type the type of the event (see
+     *        {@link ServiceEventPublisher.Event})
+     * @param key the key of the object depending on the service (see
+     *        {@link ObjectServiceTracker#getKey()})
+     * @param serviceType the type of the tracked service
+     * @param reference the reference of the service
+     */
+    public synchronized void record(
+        int type,
+        String key,
+        Class<?> serviceType,
+        ServiceReference reference) {
+        if (fFailed) {
+            return;
+        }
+        try {
+            long time = System.nanoTime();
+            int thread = writeString(Thread.currentThread().getName());
+            int keyId = writeString(key);
+            int serviceTypeId = writeString(serviceType.getName());
+            String[] names = reference.getPropertyKeys();
+            Object[] values = new Object[names.length];
+            int[] nameIds = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                nameIds[i] = writeString(names[i]);
+                values[i] = reference.getProperty(names[i]);
+                writeValueStrings(values[i]);
+            }
+            Object id = reference.getProperty(Constants.SERVICE_ID);
+            fOut.writeByte(TAG_EVENT);
+            fOut.writeByte(type);
+            writeNumber(fOut, time - fLastTime);
+            writeNumber(fOut, thread);
+            writeNumber(fOut, keyId);
+            writeNumber(fOut, serviceTypeId);
+            writeNumber(fOut, id instanceof Number
+                ? ((Number) id).longValue()
+                : 0);
+            writeNumber(fOut, names.length);
+            for (int i = 0; i < names.length; i++) {
+                writeNumber(fOut, nameIds[i]);
+                writeValue(values[i]);
+            }
+            fLastTime = time;
+            fEventCount++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the registration of a service provided by a tracked object.
+     * 
+     * @param reference the reference of the registered service
+     */
+    public synchronized void recordRegistration(ServiceReference reference) {
+        if (fFailed) {
+            return;
+        }
+        try {
+            Object id = reference.getProperty(Constants.SERVICE_ID);
+            fOut.writeByte(TAG_REGISTRATION);
+            writeNumber(fOut, id instanceof Number
+                ? ((Number) id).longValue()
+                : 0);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes a non-negative number using the variable-length encoding.
+     * 
+     * @param out the output stream
+     * @param value the number to write
+     * @throws IOException
+     */
+    static void writeNumber(DataOutputStream out, long value)
+        throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Returns the identifier of the given string. If the string is not defined
+     * yet then this method writes its definition in the log.
+     * 
+     * @param str the string
+     * @return the identifier of the string
+     * @throws IOException
+     */
+    private int writeString(String str) throws IOException {
+        Integer id = fStrings.get(str);
+        if (id == null) {
+            id = fStrings.size();
+            fStrings.put(str, id);
+            fOut.writeByte(TAG_STRING);
+            writeNumber(fOut, id);
+            byte[] bytes = str.getBytes(UTF8);
+            writeNumber(fOut, bytes.length);
+            fOut.write(bytes);
+        }
+        return id;
+    }
+
+    /**
+     * Writes a property value.
+     * 
+     * @param value the value to write
+     * @throws IOException
+     */
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            fOut.writeByte(VALUE_NULL);
+        } else if (value instanceof String) {
+            fOut.writeByte(VALUE_STRING);
+            writeNumber(fOut, fStrings.get(value));
+        } else if (value instanceof Integer) {
+            fOut.writeByte(VALUE_INTEGER);
+            fOut.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            fOut.writeByte(VALUE_LONG);
+            fOut.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            fOut.writeByte(VALUE_BOOLEAN);
+            fOut.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            fOut.writeByte(VALUE_DOUBLE);
+            fOut.writeDouble((Double) value);
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            fOut.writeByte(VALUE_STRINGS);
+            writeNumber(fOut, array.length);
+            for (String str : array) {
+                writeNumber(fOut, fStrings.get(str != null ? str : ""));
+            }
+        } else {
+            fOut.writeByte(VALUE_OTHER);
+            writeNumber(fOut, fStrings.get(String.valueOf(value)));
+        }
+    }
+
+    /**
+     * Writes definitions of strings used by the given property value. String
+     * definitions can not be written inside of event records, so they are
+     * written before.
+     * 
+     * @param value the property value
+     * @throws IOException
+     */
+    private void writeValueStrings(Object value) throws IOException {
+        if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof String[]) {
+            for (String str : (String[]) value) {
+                writeString(str != null ? str : "");
+            }
+        } else if (value != null
+            && !(value instanceof Integer)
+            && !(value instanceof Long)
+            && !(value instanceof Boolean)
+            && !(value instanceof Double)) {
+            writeString(String.valueOf(value));
+        }
+    }
+
+}
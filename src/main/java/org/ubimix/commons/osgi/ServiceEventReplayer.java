@@ -0,0 +1,551 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * This class reads service event logs written by the
+ * {@link ServiceEventRecorder} and replays them against a bundle context.
+ * Trackers opened on this context see the same sequence of service arrivals,
+ * modifications and departures as trackers in the recorded run, so
+ * real-world activation behavior can be reproduced and measured offline.
+ * The {@link #newContext()} method returns an isolated in-memory context
+ * which does not require an OSGi framework; any other context can be used as
+ * well.
+ * <p>
+ * Each recorded service is registered when the first event about it is
+ * replayed, its properties are updated by modification events and it is
+ * unregistered by the first removal event. Removals caused by closing
+ * trackers are not recorded, so a removal event always means that the
+ * service disappeared in the recorded run. Services registered by tracked
+ * objects in the recorded run are skipped: the replayed objects register them
+ * again. Services are registered with their recorded properties (except the
+ * service identifier which is assigned by the context). Service objects are dynamic proxies implementing all
+ * recorded service interfaces which can be loaded by the given class loader;
+ * methods of these proxies return default values.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ServiceEventReplayer {
+
+    /**
+     * One recorded service event.
+     */
+    public static class Event {
+
+        private final String fKey;
+
+        private final Map<String, Object> fProperties;
+
+        private final long fServiceId;
+
+        private final String fServiceType;
+
+        private final String fThread;
+
+        private final long fTime;
+
+        private final int fType;
+
+        public Event(
+            int type,
+            long time,
+            String thread,
+            String key,
+            String serviceType,
+            long serviceId,
+            Map<String, Object> properties) {
+            fType = type;
+            fTime = time;
+            fThread = thread;
+            fKey = key;
+            fServiceType = serviceType;
+            fServiceId = serviceId;
+            fProperties = Collections.unmodifiableMap(properties);
+        }
+
+        /**
+         * Returns the key of the object depending on the service.
+         * 
+         * @return the key of the object depending on the service
+         */
+        public String getKey() {
+            return fKey;
+        }
+
+        /**
+         * Returns recorded service properties.
+         * 
+         * @return recorded service properties
+         */
+        public Map<String, Object> getProperties() {
+            return fProperties;
+        }
+
+        /**
+         * Returns the identifier of the service in the recorded run.
+         * 
+         * @return the identifier of the service
+         */
+        public long getServiceId() {
+            return fServiceId;
+        }
+
+        /**
+         * Returns the type of the tracked service.
+         * 
+         * @return the type of the tracked service
+         */
+        public String getServiceType() {
+            return fServiceType;
+        }
+
+        /**
+         * Returns the name of the thread which delivered the event.
+         * 
+         * @return the name of the thread
+         */
+        public String getThread() {
+            return fThread;
+        }
+
+        /**
+         * Returns the time of the event (in nanoseconds) since the recording
+         * started.
+         * 
+         * @return the time of the event
+         */
+        public long getTime() {
+            return fTime;
+        }
+
+        /**
+         * Returns the type of the event (see
+         * {@link ServiceEventPublisher.Event}).
+         * 
+         * @return the type of the event
+         */
+        public int getType() {
+            return fType;
+        }
+
+        @Override
+        public String toString() {
+            return fType
+                + " "
+                + fServiceType
+                + "#"
+                + fServiceId
+                + " for "
+                + fKey
+                + " at "
+                + fTime
+                + " in "
+                + fThread;
+        }
+    }
+
+    /**
+     * Returns a new isolated bundle context used to replay events without an
+     * OSGi framework. Service events are delivered synchronously by the
+     * thread registering, modifying or unregistering services; methods
+     * managing bundles are not supported. The data area of the returned
+     * context is not available.
+     * 
+     * @return a new in-memory bundle context
+     */
+    public static BundleContext newContext() {
+        return new InMemoryBundleContext();
+    }
+
+    /**
+     * Reads a non-negative number written using the variable-length encoding.
+     * 
+     * @param in the input stream
+     * @return the number
+     * @throws IOException
+     */
+    static long readNumber(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Bad number");
+    }
+
+    /**
+     * Recorded events.
+     */
+    private final List<Event> fEvents = new ArrayList<Event>();
+
+    /**
+     * Identifiers of services registered by tracked objects in the recorded
+     * run.
+     */
+    private final Set<Long> fRegisteredServices = new HashSet<Long>();
+
+    /**
+     * The time (in milliseconds) when the recording started.
+     */
+    private long fStartTime;
+
+    /**
+     * This constructor reads all events from the specified file.
+     * 
+     * @param file the file of the log
+     * @throws IOException if the log can not be read
+     */
+    public ServiceEventReplayer(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * This constructor reads all events from the given stream and closes it.
+     * 
+     * @param input the stream of the log
+     * @throws IOException if the log can not be read
+     */
+    public ServiceEventReplayer(InputStream input) throws IOException {
+        try {
+            read(new DataInputStream(new BufferedInputStream(input)));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the default value of the given type.
+     * 
+     * @param type the type
+     * @return the default value of the type
+     */
+    private static Object getDefaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == char.class) {
+            return Character.valueOf((char) 0);
+        } else if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        } else if (type == short.class) {
+            return Short.valueOf((short) 0);
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        } else if (type == float.class) {
+            return Float.valueOf(0);
+        } else {
+            return Double.valueOf(0);
+        }
+    }
+
+    /**
+     * Returns recorded events.
+     * 
+     * @return recorded events
+     */
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(fEvents);
+    }
+
+    /**
+     * Returns the time (in milliseconds) when the recording started.
+     * 
+     * @return the time when the recording started
+     */
+    public long getStartTime() {
+        return fStartTime;
+    }
+
+    /**
+     * Returns names of interfaces implemented by the given proxy.
+     * 
+     * @param proxy the proxy
+     * @return names of interfaces implemented by the proxy
+     */
+    private static String interfacesToString(Object proxy) {
+        List<String> names = new ArrayList<String>();
+        for (Class<?> cls : proxy.getClass().getInterfaces()) {
+            names.add(cls.getName());
+        }
+        return names.toString();
+    }
+
+    /**
+     * Returns properties used to register or to update the service of the
+     * given event.
+     * 
+     * @param event the event
+     * @return service properties
+     */
+    private Hashtable<String, Object> newProperties(Event event) {
+        Hashtable<String, Object> result = new Hashtable<String, Object>();
+        for (Map.Entry<String, Object> entry : event
+            .getProperties()
+            .entrySet()) {
+            if (entry.getValue() != null
+                && !Constants.SERVICE_ID.equals(entry.getKey())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new service object implementing the given service interfaces.
+     * 
+     * @param classes names of service classes
+     * @param loader the class loader used to load service interfaces
+     * @return a new service object
+     */
+    private Object newService(String[] classes, ClassLoader loader) {
+        List<Class<?>> interfaces = new ArrayList<Class<?>>();
+        for (String name : classes) {
+            try {
+                Class<?> cls = Class.forName(name, false, loader);
+                if (cls.isInterface()) {
+                    interfaces.add(cls);
+                }
+            } catch (ClassNotFoundException e) {
+                // This interface is not available
+            }
+        }
+        if (interfaces.isEmpty()) {
+            return new Object();
+        }
+        try {
+            return Proxy.newProxyInstance(
+                loader,
+                interfaces.toArray(new Class<?>[interfaces.size()]),
+                new InvocationHandler() {
+                    public Object invoke(
+                        Object proxy,
+                        Method method,
+                        Object[] args) {
+                        String name = method.getName();
+                        if ("equals".equals(name) && args != null) {
+                            return proxy == args[0];
+                        } else if ("hashCode".equals(name)) {
+                            return System.identityHashCode(proxy);
+                        } else if ("toString".equals(name)) {
+                            return "Replayed" + interfacesToString(proxy);
+                        }
+                        return getDefaultValue(method.getReturnType());
+                    }
+                });
+        } catch (IllegalArgumentException e) {
+            return new Object();
+        }
+    }
+
+    /**
+     * Reads the log.
+     * 
+     * @param in the stream of the log
+     * @throws IOException
+     */
+    private void read(DataInputStream in) throws IOException {
+        if (in.readInt() != ServiceEventRecorder.MAGIC) {
+            throw new IOException("Not a service event log");
+        }
+        int version = in.readShort();
+        if (version != ServiceEventRecorder.VERSION) {
+            throw new IOException("Unsupported log version: " + version);
+        }
+        fStartTime = in.readLong();
+        List<String> strings = new ArrayList<String>();
+        long time = 0;
+        while (true) {
+            int tag;
+            try {
+                tag = in.readUnsignedByte();
+            } catch (EOFException e) {
+                break;
+            }
+            if (tag == ServiceEventRecorder.TAG_STRING) {
+                int id = (int) readNumber(in);
+                if (id != strings.size()) {
+                    throw new IOException("Bad string identifier: " + id);
+                }
+                byte[] bytes = new byte[(int) readNumber(in)];
+                in.readFully(bytes);
+                strings.add(new String(bytes, ServiceEventRecorder.UTF8));
+            } else if (tag == ServiceEventRecorder.TAG_EVENT) {
+                int type = in.readUnsignedByte();
+                time += readNumber(in);
+                String thread = strings.get((int) readNumber(in));
+                String key = strings.get((int) readNumber(in));
+                String serviceType = strings.get((int) readNumber(in));
+                long serviceId = readNumber(in);
+                int count = (int) readNumber(in);
+                Map<String, Object> properties = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < count; i++) {
+                    String name = strings.get((int) readNumber(in));
+                    properties.put(name, readValue(in, strings));
+                }
+                fEvents.add(new Event(
+                    type,
+                    time,
+                    thread,
+                    key,
+                    serviceType,
+                    serviceId,
+                    properties));
+            } else if (tag == ServiceEventRecorder.TAG_REGISTRATION) {
+                fRegisteredServices.add(readNumber(in));
+            } else {
+                throw new IOException("Bad record tag: " + tag);
+            }
+        }
+    }
+
+    /**
+     * Reads a property value.
+     * 
+     * @param in the input stream
+     * @param strings strings defined in the log
+     * @return the property value
+     * @throws IOException
+     */
+    private Object readValue(DataInputStream in, List<String> strings)
+        throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case ServiceEventRecorder.VALUE_NULL:
+                return null;
+            case ServiceEventRecorder.VALUE_STRING:
+            case ServiceEventRecorder.VALUE_OTHER:
+                return strings.get((int) readNumber(in));
+            case ServiceEventRecorder.VALUE_INTEGER:
+                return in.readInt();
+            case ServiceEventRecorder.VALUE_LONG:
+                return in.readLong();
+            case ServiceEventRecorder.VALUE_BOOLEAN:
+                return in.readBoolean();
+            case ServiceEventRecorder.VALUE_DOUBLE:
+                return in.readDouble();
+            case ServiceEventRecorder.VALUE_STRINGS:
+                String[] array = new String[(int) readNumber(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = strings.get((int) readNumber(in));
+                }
+                return array;
+            default:
+                throw new IOException("Bad value tag: " + tag);
+        }
+    }
+
+    /**
+     * Replays recorded events against the given context. Trackers replaying
+     * the recorded run should be opened on this context before this method is
+     * called.
+     * 
+     * @param context the context used to register, modify and unregister
+     *        recorded services
+     * @param loader the class loader used to load service interfaces
+     * @param speed the speed of the replay: 1 keeps recorded delays between
+     *        events, 2 replays events two times faster and so on; if it is 0
+     *        (or negative) then events are replayed without delays
+     * @return the time (in nanoseconds) spent in the replay
+     * @throws InterruptedException if the replay was interrupted
+     */
+    public long replay(
+        BundleContext context,
+        ClassLoader loader,
+        double speed) throws InterruptedException {
+        Map<Long, ServiceRegistration> registrations = new HashMap<Long, ServiceRegistration>();
+        long start = System.nanoTime();
+        for (Event event : fEvents) {
+            if (speed > 0) {
+                long delay = start
+                    + (long) (event.getTime() / speed)
+                    - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            }
+            Long id = event.getServiceId();
+            if (fRegisteredServices.contains(id)) {
+                continue;
+            }
+            ServiceRegistration registration = registrations.get(id);
+            switch (event.getType()) {
+                case ServiceEventPublisher.Event.ADDED:
+                    if (registration == null) {
+                        Object classes = event
+                            .getProperties()
+                            .get(Constants.OBJECTCLASS);
+                        String[] names = classes instanceof String[]
+                            ? (String[]) classes
+                            : new String[] { event.getServiceType() };
+                        registration = context.registerService(
+                            names,
+                            newService(names, loader),
+                            newProperties(event));
+                        registrations.put(id, registration);
+                    }
+                    break;
+                case ServiceEventPublisher.Event.MODIFIED:
+                    if (registration != null) {
+                        registration.setProperties(newProperties(event));
+                    }
+                    break;
+                case ServiceEventPublisher.Event.REMOVED:
+                    if (registration != null) {
+                        registrations.remove(id);
+                        registration.unregister();
+                    }
+                    break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+}
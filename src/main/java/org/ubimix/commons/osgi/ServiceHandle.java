@@ -0,0 +1,145 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A lightweight handle injected in service activator/deactivator methods
+ * accepting services lazily. The service object is obtained from the framework
+ * only when the {@link #get()} method is called for the first time; this
+ * object is then cached until the service is removed. Lazy binding avoids the
+ * instantiation of services provided by <code>ServiceFactory</code>s which are
+ * never used.
+ * <p>
+ * Methods accepting handles should declare the type of the service in the
+ * <code>serviceType</code> attribute of their annotation, for example:
+ * </p>
+ * 
+ * <pre>
+ * &#064;OSGIServiceActivator(serviceType = IStore.class)
+ * public void addStore(ServiceHandle&lt;IStore&gt; store) { ... }
+ * </pre>
+ * 
+ * @author kotelnikov
+ * @param <T> the type of the service
+ */
+public class ServiceHandle<T> {
+
+    /**
+     * The context used to get the service.
+     */
+    private final BundleContext fContext;
+
+    /**
+     * This flag is <code>true</code> if the service was obtained from the
+     * framework.
+     */
+    private boolean fFetched;
+
+    /**
+     * The reference of the service.
+     */
+    private final ServiceReference fReference;
+
+    /**
+     * This flag is <code>true</code> if the service was released.
+     */
+    private boolean fReleased;
+
+    /**
+     * The cached service object.
+     */
+    private T fService;
+
+    /**
+     * @param context the context used to get the service
+     * @param reference the reference of the service
+     */
+    public ServiceHandle(BundleContext context, ServiceReference reference) {
+        fContext = context;
+        fReference = reference;
+    }
+
+    /**
+     * Returns the service object. The service is obtained from the framework on
+     * the first call. This method returns <code>null</code> if the service was
+     * removed.
+     * 
+     * @return the service object
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T get() {
+        if (!fFetched && !fReleased) {
+            fService = (T) fContext.getService(fReference);
+            fFetched = true;
+        }
+        return fService;
+    }
+
+    /**
+     * Returns the value of the specified service property.
+     * 
+     * @param key the name of the property
+     * @return the value of the service property
+     */
+    public Object getProperty(String key) {
+        return fReference.getProperty(key);
+    }
+
+    /**
+     * Returns the reference of the service.
+     * 
+     * @return the reference of the service
+     */
+    public ServiceReference getReference() {
+        return fReference;
+    }
+
+    /**
+     * Returns <code>true</code> if the service object was already obtained
+     * from the framework.
+     * 
+     * @return <code>true</code> if the service object was obtained
+     */
+    public synchronized boolean isFetched() {
+        return fFetched;
+    }
+
+    /**
+     * Releases the service. If the service object was obtained then it is
+     * returned to the framework.
+     */
+    public void release() {
+        boolean unget;
+        synchronized (this) {
+            unget = fFetched && !fReleased;
+            fReleased = true;
+            fService = null;
+        }
+        if (unget) {
+            fContext.ungetService(fReference);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceHandle[" + fReference + "]";
+    }
+
+}
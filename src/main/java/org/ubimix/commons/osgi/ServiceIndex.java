@@ -0,0 +1,241 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This index gives access to services tracked by an
+ * {@link ObjectServiceTracker} by values of one service property. It is
+ * maintained by the tracker when services are added, modified or removed. If
+ * the property value is an array or a collection then the service is indexed
+ * by each of its elements.
+ * <p>
+ * Lookups do not acquire locks and they take a constant time, so this index can
+ * be used from request threads. Services registered with the same key are
+ * ordered by their ranking (the service with the highest ranking is the first)
+ * and then by their identifiers.
+ * </p>
+ * 
+ * @author kotelnikov
+ * @param <T> the type of indexed services
+ */
+public class ServiceIndex<T> {
+
+    /**
+     * Individual entries of the index.
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        private final long fId;
+
+        private final int fRanking;
+
+        private final ServiceReference fReference;
+
+        private final Object fService;
+
+        public Entry(ServiceReference reference, Object service) {
+            fReference = reference;
+            fService = service;
+            Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+            fRanking = ranking instanceof Integer ? (Integer) ranking : 0;
+            Object id = reference.getProperty(Constants.SERVICE_ID);
+            fId = id instanceof Long ? (Long) id : 0;
+        }
+
+        public int compareTo(Entry o) {
+            if (fRanking != o.fRanking) {
+                return fRanking > o.fRanking ? -1 : 1;
+            }
+            return fId < o.fId ? -1 : fId == o.fId ? 0 : 1;
+        }
+    }
+
+    /**
+     * An empty array of entries.
+     */
+    private final static Entry[] EMPTY = new Entry[0];
+
+    /**
+     * Immutable arrays of entries corresponding to individual keys. These
+     * arrays are replaced (and never modified) when services are added or
+     * removed.
+     */
+    private final Map<Object, Entry[]> fEntries = new ConcurrentHashMap<Object, Entry[]>();
+
+    /**
+     * Keys of all indexed service references. This map is used to remove
+     * services from the index even if their properties were changed.
+     */
+    private final Map<ServiceReference, Object[]> fKeys = new HashMap<ServiceReference, Object[]>();
+
+    /**
+     * The name of the indexed property.
+     */
+    private final String fProperty;
+
+    /**
+     * @param property the name of the indexed service property
+     */
+    public ServiceIndex(String property) {
+        fProperty = property;
+    }
+
+    /**
+     * Adds the specified service to this index. If the service is already
+     * indexed then it is re-indexed using the current values of properties.
+     * 
+     * @param reference the service reference
+     * @param service the service object
+     */
+    public synchronized void add(ServiceReference reference, Object service) {
+        remove(reference);
+        Object[] keys = getKeys(reference.getProperty(fProperty));
+        if (keys.length == 0) {
+            return;
+        }
+        fKeys.put(reference, keys);
+        Entry entry = new Entry(reference, service);
+        for (Object key : keys) {
+            Entry[] entries = fEntries.get(key);
+            if (entries == null) {
+                entries = EMPTY;
+            }
+            Entry[] array = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, array, 0, entries.length);
+            array[entries.length] = entry;
+            Arrays.sort(array);
+            fEntries.put(key, array);
+        }
+    }
+
+    /**
+     * Returns the service with the highest ranking registered with the
+     * specified key or <code>null</code> if there is no such services.
+     * 
+     * @param key the key of the service
+     * @return the service registered with the specified key
+     */
+    @SuppressWarnings("unchecked")
+    public T get(Object key) {
+        Entry[] entries = key != null ? fEntries.get(key) : null;
+        return entries != null ? (T) entries[0].fService : null;
+    }
+
+    /**
+     * Returns all services registered with the specified key.
+     * 
+     * @param key the key of services
+     * @return a list of services registered with the specified key
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> getAll(Object key) {
+        Entry[] entries = key != null ? fEntries.get(key) : null;
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        List<T> result = new ArrayList<T>(entries.length);
+        for (Entry entry : entries) {
+            result.add((T) entry.fService);
+        }
+        return result;
+    }
+
+    /**
+     * Returns all keys of this index.
+     * 
+     * @return all keys of this index
+     */
+    public Collection<Object> getKeys() {
+        return Collections.unmodifiableSet(fEntries.keySet());
+    }
+
+    /**
+     * Returns an array of keys corresponding to the given property value.
+     * 
+     * @param value the value of the indexed property
+     * @return an array of keys
+     */
+    private Object[] getKeys(Object value) {
+        if (value == null) {
+            return new Object[0];
+        }
+        if (value instanceof Collection<?>) {
+            return ((Collection<?>) value).toArray();
+        }
+        if (value.getClass().isArray()) {
+            int len = Array.getLength(value);
+            Object[] result = new Object[len];
+            for (int i = 0; i < len; i++) {
+                result[i] = Array.get(value, i);
+            }
+            return result;
+        }
+        return new Object[] { value };
+    }
+
+    /**
+     * Returns the name of the indexed property.
+     * 
+     * @return the name of the indexed property
+     */
+    public String getProperty() {
+        return fProperty;
+    }
+
+    /**
+     * Removes the specified service from this index.
+     * 
+     * @param reference the reference of the service to remove
+     */
+    public synchronized void remove(ServiceReference reference) {
+        Object[] keys = fKeys.remove(reference);
+        if (keys == null) {
+            return;
+        }
+        for (Object key : keys) {
+            Entry[] entries = fEntries.get(key);
+            if (entries == null) {
+                continue;
+            }
+            List<Entry> list = new ArrayList<Entry>(Arrays.asList(entries));
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (list.get(i).fReference == reference) {
+                    list.remove(i);
+                }
+            }
+            if (list.isEmpty()) {
+                fEntries.remove(key);
+            } else {
+                fEntries.put(key, list.toArray(new Entry[list.size()]));
+            }
+        }
+    }
+
+}
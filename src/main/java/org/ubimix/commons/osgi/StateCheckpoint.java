@@ -0,0 +1,226 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * This class stores the state of one object in the data area of the bundle and
+ * restores it after a restart. The state is serialized together with its
+ * version; a stored state is restored only if its version matches the
+ * expected one. The stored state is removed when it is restored, so it is
+ * never used twice.
+ * 
+ * @author kotelnikov
+ * @see OSGIObjectCheckpoint
+ * @see OSGIObjectRestore
+ */
+public class StateCheckpoint {
+
+    /**
+     * This stream fails when more than the allowed number of bytes is written.
+     */
+    private static class LimitedOutputStream extends FilterOutputStream {
+
+        private long fSize;
+
+        public LimitedOutputStream(OutputStream out, long size) {
+            super(out);
+            fSize = size;
+        }
+
+        private void check(long len) throws IOException {
+            fSize -= len;
+            if (fSize < 0) {
+                throw new IOException("The state is too large.");
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check(1);
+            out.write(b);
+        }
+    }
+
+    /**
+     * The directory of the bundle data area containing stored states.
+     */
+    public final static String DIRECTORY = "ubimix.osgi.checkpoints";
+
+    /**
+     * The logger used by this class.
+     */
+    private final static Logger log = Logger.getLogger(StateCheckpoint.class
+        .getName());
+
+    /**
+     * The file containing the stored state. It can be <code>null</code> if the
+     * framework does not provide a file system support.
+     */
+    private File fFile;
+
+    /**
+     * @param context the bundle context used to access the bundle data area
+     * @param key the key of the object; it is used to build the file name
+     */
+    public StateCheckpoint(BundleContext context, String key) {
+        File dir = context != null ? context.getDataFile(DIRECTORY) : null;
+        if (dir != null) {
+            try {
+                fFile = new File(dir, URLEncoder.encode(key, "UTF-8") + ".ser");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Removes the stored state.
+     */
+    public void delete() {
+        if (fFile != null && fFile.exists()) {
+            fFile.delete();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if a state is stored.
+     * 
+     * @return <code>true</code> if a state is stored
+     */
+    public boolean exists() {
+        return fFile != null && fFile.exists();
+    }
+
+    /**
+     * Restores the stored state and removes it from the bundle data area. This
+     * method returns <code>null</code> if there is no stored state, if it was
+     * stored with another version, if it is larger than the specified size or
+     * if it can not be read.
+     * 
+     * @param version the expected version of the state
+     * @param maxSize the maximal size of the state (in bytes)
+     * @param loader the class loader used to load classes of the state
+     * @return the restored state or <code>null</code>
+     */
+    public Object restore(int version, long maxSize, final ClassLoader loader) {
+        if (!exists()) {
+            return null;
+        }
+        try {
+            if (fFile.length() > maxSize) {
+                log.fine("The stored state is too large: " + fFile);
+                return null;
+            }
+            InputStream input = new BufferedInputStream(new FileInputStream(
+                fFile));
+            try {
+                ObjectInputStream in = new ObjectInputStream(input) {
+                    @Override
+                    protected Class<?> resolveClass(ObjectStreamClass desc)
+                        throws IOException,
+                        ClassNotFoundException {
+                        try {
+                            return Class.forName(desc.getName(), false, loader);
+                        } catch (ClassNotFoundException e) {
+                            return super.resolveClass(desc);
+                        }
+                    }
+                };
+                if (in.readInt() != version) {
+                    return null;
+                }
+                return in.readObject();
+            } finally {
+                input.close();
+            }
+        } catch (Exception e) {
+            log.log(Level.FINE, "Can not restore the state from " + fFile, e);
+            return null;
+        } finally {
+            delete();
+        }
+    }
+
+    /**
+     * Stores the given state. If the state is <code>null</code> or if it can
+     * not be stored (for example if it is larger than the specified size) then
+     * the previously stored state is removed.
+     * 
+     * @param version the version of the state
+     * @param state the state to store
+     * @param maxSize the maximal size of the state (in bytes)
+     * @return <code>true</code> if the state was stored
+     */
+    public boolean store(int version, Object state, long maxSize) {
+        if (fFile == null) {
+            return false;
+        }
+        delete();
+        if (state == null) {
+            return false;
+        }
+        boolean ok = false;
+        try {
+            fFile.getParentFile().mkdirs();
+            OutputStream output = new LimitedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fFile)),
+                maxSize);
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(output);
+                out.writeInt(version);
+                out.writeObject(state);
+                out.flush();
+                ok = true;
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can not store the state in " + fFile, e);
+        } finally {
+            if (!ok) {
+                delete();
+            }
+        }
+        return ok;
+    }
+
+}
@@ -0,0 +1,147 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.reflect.Method;
+
+/**
+ * This class gives access to the global sink of lifecycle events emitted by
+ * {@link ObjectServiceTracker}s and {@link ConfigurableMultiserviceActivator}s.
+ * Events are used to make the work of trackers visible in profilers; for
+ * example an application running on a JVM with Java Flight Recorder can install
+ * a sink committing its own <code>jdk.jfr.Event</code>s. If no sink is
+ * installed then the only overhead of events is one volatile read per event
+ * source.
+ * <p>
+ * All times are given in nanoseconds (see {@link System#nanoTime()}). Sinks
+ * are called synchronously by threads emitting events, so they should be fast
+ * and should not throw exceptions.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class TrackerEvents {
+
+    /**
+     * Receivers of tracker lifecycle events.
+     */
+    public interface Sink {
+
+        /**
+         * Called when the managed object is activated.
+         * 
+         * @param object the activated object
+         * @param start the start time of the activation
+         * @param duration the duration of the activation
+         */
+        void onActivation(Object object, long start, long duration);
+
+        /**
+         * Called after each call of an annotated method (object
+         * activators/deactivators, service activators/deactivators and
+         * service getters).
+         * 
+         * @param object the object owning the method
+         * @param method the called method
+         * @param start the start time of the call
+         * @param duration the duration of the call
+         */
+        void onCallback(
+            Object object,
+            Method method,
+            long start,
+            long duration);
+
+        /**
+         * Called when a configuration is applied.
+         * 
+         * @param pid the PID of the configuration
+         * @param start the start time of the update
+         * @param duration the duration of the update
+         */
+        void onConfigurationUpdate(String pid, long start, long duration);
+
+        /**
+         * Called when the managed object is deactivated.
+         * 
+         * @param object the deactivated object
+         * @param start the start time of the deactivation
+         * @param duration the duration of the deactivation
+         */
+        void onDeactivation(Object object, long start, long duration);
+
+        /**
+         * Called when the number of available services of one type becomes
+         * lower than the minimal required number.
+         * 
+         * @param object the object depending on services
+         * @param type the type of services
+         */
+        void onDependencyLost(Object object, Class<?> type);
+
+        /**
+         * Called when the number of available services of one type reaches
+         * the minimal required number.
+         * 
+         * @param object the object depending on services
+         * @param type the type of services
+         */
+        void onDependencySatisfied(Object object, Class<?> type);
+
+        /**
+         * Called when a service provided by the managed object is registered.
+         * 
+         * @param object the object providing the service
+         * @param serviceType the name of the service interface
+         * @param start the start time of the registration
+         * @param duration the duration of the registration
+         */
+        void onServiceRegistration(
+            Object object,
+            String serviceType,
+            long start,
+            long duration);
+    }
+
+    /**
+     * The installed sink.
+     */
+    private static volatile Sink fSink;
+
+    /**
+     * Returns the installed sink or <code>null</code> if events are disabled.
+     * 
+     * @return the installed sink
+     */
+    public static Sink getSink() {
+        return fSink;
+    }
+
+    /**
+     * Installs a new sink. If the sink is <code>null</code> then events are
+     * disabled.
+     * 
+     * @param sink the sink to install
+     */
+    public static void setSink(Sink sink) {
+        fSink = sink;
+    }
+
+    private TrackerEvents() {
+    }
+
+}
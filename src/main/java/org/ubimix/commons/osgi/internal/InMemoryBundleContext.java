@@ -0,0 +1,551 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi.internal;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * An in-process stand-in for the OSGi framework service registry. It is used to
+ * run {@link org.ubimix.commons.osgi.MultiServiceTracker}s and
+ * {@link org.ubimix.commons.osgi.ObjectServiceTracker}s without a real
+ * framework, for example in benchmarks and to replay recorded service events
+ * (see {@link org.ubimix.commons.osgi.ServiceEventReplayer#newContext()}).
+ * Service events are delivered synchronously by the thread registering,
+ * modifying or unregistering services, as most frameworks do.
+ * <p>
+ * This context keeps counters of delivered service events, of registered
+ * service listeners and of services obtained using the
+ * {@link #getService(ServiceReference)} method. Methods managing bundles are
+ * not supported.
+ * </p>
+ * <p>
+ * This class is not exported by the bundle; it is available to offline tools
+ * running the library outside of a framework.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class InMemoryBundleContext implements BundleContext {
+
+    /**
+     * A service listener registered in this context.
+     */
+    private static class ListenerEntry {
+
+        private final Filter fFilter;
+
+        private final ServiceListener fListener;
+
+        public ListenerEntry(ServiceListener listener, Filter filter) {
+            fListener = listener;
+            fFilter = filter;
+        }
+    }
+
+    /**
+     * Service registrations and references.
+     */
+    private class Registration
+        implements
+        ServiceRegistration,
+        ServiceReference,
+        Comparable<Object> {
+
+        private final String[] fClasses;
+
+        private int fGetCounter;
+
+        private final long fId;
+
+        private volatile Hashtable<String, Object> fProperties;
+
+        private final Object fService;
+
+        private Object fServiceObject;
+
+        private boolean fUnregistered;
+
+        public Registration(
+            long id,
+            String[] classes,
+            Object service,
+            Dictionary<?, ?> properties) {
+            fId = id;
+            fClasses = classes;
+            fService = service;
+            fProperties = newProperties(properties);
+        }
+
+        public int compareTo(Object o) {
+            Registration r = (Registration) o;
+            int first = getRanking();
+            int second = r.getRanking();
+            if (first != second) {
+                return first < second ? -1 : 1;
+            }
+            return fId > r.fId ? -1 : fId == r.fId ? 0 : 1;
+        }
+
+        public Bundle getBundle() {
+            return null;
+        }
+
+        public Object getProperty(String key) {
+            Object value = fProperties.get(key);
+            if (value == null) {
+                for (Map.Entry<String, Object> entry : fProperties.entrySet()) {
+                    if (entry.getKey().equalsIgnoreCase(key)) {
+                        value = entry.getValue();
+                        break;
+                    }
+                }
+            }
+            return value;
+        }
+
+        public String[] getPropertyKeys() {
+            return fProperties.keySet().toArray(new String[fProperties.size()]);
+        }
+
+        private int getRanking() {
+            Object ranking = fProperties.get(Constants.SERVICE_RANKING);
+            return ranking instanceof Integer ? (Integer) ranking : 0;
+        }
+
+        public ServiceReference getReference() {
+            return this;
+        }
+
+        /**
+         * Returns the service object. Services provided by
+         * {@link ServiceFactory}s are instantiated on the first call.
+         */
+        synchronized Object getService() {
+            if (fUnregistered) {
+                return null;
+            }
+            if (fGetCounter == 0) {
+                if (fService instanceof ServiceFactory) {
+                    fServiceObject = ((ServiceFactory) fService).getService(
+                        null,
+                        this);
+                    fFactoryCounter.incrementAndGet();
+                } else {
+                    fServiceObject = fService;
+                }
+            }
+            fGetCounter++;
+            return fServiceObject;
+        }
+
+        public Bundle[] getUsingBundles() {
+            return null;
+        }
+
+        public boolean isAssignableTo(Bundle bundle, String className) {
+            return true;
+        }
+
+        private Hashtable<String, Object> newProperties(
+            Dictionary<?, ?> properties) {
+            Hashtable<String, Object> result = new Hashtable<String, Object>();
+            if (properties != null) {
+                Enumeration<?> keys = properties.keys();
+                while (keys.hasMoreElements()) {
+                    Object key = keys.nextElement();
+                    result.put(String.valueOf(key), properties.get(key));
+                }
+            }
+            result.put(Constants.OBJECTCLASS, fClasses);
+            result.put(Constants.SERVICE_ID, fId);
+            return result;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public void setProperties(Dictionary properties) {
+            synchronized (this) {
+                if (fUnregistered) {
+                    throw new IllegalStateException(
+                        "The service is unregistered.");
+                }
+            }
+            fProperties = newProperties(properties);
+            fireEvent(ServiceEvent.MODIFIED, this);
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(fClasses) + fProperties;
+        }
+
+        /**
+         * Releases the service object.
+         */
+        synchronized boolean ungetService() {
+            if (fGetCounter == 0) {
+                return false;
+            }
+            fGetCounter--;
+            if (fGetCounter == 0 && fService instanceof ServiceFactory) {
+                ((ServiceFactory) fService).ungetService(
+                    null,
+                    this,
+                    fServiceObject);
+                fServiceObject = null;
+            }
+            return true;
+        }
+
+        public void unregister() {
+            synchronized (this) {
+                if (fUnregistered) {
+                    throw new IllegalStateException(
+                        "The service is already unregistered.");
+                }
+            }
+            fireEvent(ServiceEvent.UNREGISTERING, this);
+            boolean release;
+            synchronized (this) {
+                fUnregistered = true;
+                release = fGetCounter > 0;
+                if (release) {
+                    fGetCounter = 1;
+                }
+            }
+            if (release) {
+                ungetService();
+            }
+            fRegistrations.remove(this);
+        }
+    }
+
+    /**
+     * The directory used as the bundle data area; it can be <code>null</code>.
+     */
+    private final File fDataDir;
+
+    /**
+     * The number of delivered service events.
+     */
+    private final AtomicLong fEventCounter = new AtomicLong();
+
+    /**
+     * The number of services instantiated by service factories.
+     */
+    private final AtomicLong fFactoryCounter = new AtomicLong();
+
+    /**
+     * The number of calls of the {@link #getService(ServiceReference)} method.
+     */
+    private final AtomicLong fGetServiceCounter = new AtomicLong();
+
+    /**
+     * The identifier of the next registered service.
+     */
+    private final AtomicLong fIdCounter = new AtomicLong();
+
+    /**
+     * Registered service listeners.
+     */
+    private final List<ListenerEntry> fListeners = new CopyOnWriteArrayList<ListenerEntry>();
+
+    /**
+     * The maximal number of service listeners registered at the same time.
+     */
+    private int fPeakListenerCount;
+
+    /**
+     * Framework properties.
+     */
+    private final Map<String, String> fProperties = new Hashtable<String, String>();
+
+    /**
+     * All registered services.
+     */
+    private final List<Registration> fRegistrations = new CopyOnWriteArrayList<Registration>();
+
+    /**
+     * Creates a context without a data area.
+     */
+    public InMemoryBundleContext() {
+        this(null);
+    }
+
+    /**
+     * @param dataDir the directory used as the bundle data area; if it is
+     *        <code>null</code> then the {@link #getDataFile(String)} method
+     *        returns <code>null</code>
+     */
+    public InMemoryBundleContext(File dataDir) {
+        fDataDir = dataDir;
+    }
+
+    public void addBundleListener(BundleListener listener) {
+    }
+
+    public void addFrameworkListener(FrameworkListener listener) {
+    }
+
+    public void addServiceListener(ServiceListener listener) {
+        addServiceListener(listener, (Filter) null);
+    }
+
+    private synchronized void addServiceListener(
+        ServiceListener listener,
+        Filter filter) {
+        removeServiceListener(listener);
+        fListeners.add(new ListenerEntry(listener, filter));
+        fPeakListenerCount = Math.max(fPeakListenerCount, fListeners.size());
+    }
+
+    public void addServiceListener(ServiceListener listener, String filter)
+        throws InvalidSyntaxException {
+        addServiceListener(listener, filter != null
+            ? createFilter(filter)
+            : null);
+    }
+
+    public Filter createFilter(String filter) throws InvalidSyntaxException {
+        return SimpleFilter.parse(filter);
+    }
+
+    /**
+     * Delivers a service event to all listeners interested in it.
+     * 
+     * @param type the type of the event
+     * @param registration the registration of the service
+     */
+    private void fireEvent(int type, Registration registration) {
+        ServiceEvent event = new ServiceEvent(type, registration);
+        for (ListenerEntry entry : fListeners) {
+            if (entry.fFilter == null || entry.fFilter.match(registration)) {
+                fEventCounter.incrementAndGet();
+                entry.fListener.serviceChanged(event);
+            }
+        }
+    }
+
+    public ServiceReference[] getAllServiceReferences(
+        String clazz,
+        String filter) throws InvalidSyntaxException {
+        return getServiceReferences(clazz, filter);
+    }
+
+    public Bundle getBundle() {
+        return null;
+    }
+
+    public Bundle getBundle(long id) {
+        return null;
+    }
+
+    public Bundle[] getBundles() {
+        return new Bundle[0];
+    }
+
+    public File getDataFile(String filename) {
+        if (fDataDir == null) {
+            return null;
+        }
+        fDataDir.mkdirs();
+        return new File(fDataDir, filename);
+    }
+
+    /**
+     * Returns the number of service events delivered to listeners.
+     * 
+     * @return the number of delivered service events
+     */
+    public long getEventCount() {
+        return fEventCounter.get();
+    }
+
+    /**
+     * Returns the number of services instantiated by service factories.
+     * 
+     * @return the number of services instantiated by service factories
+     */
+    public long getFactoryServiceCount() {
+        return fFactoryCounter.get();
+    }
+
+    /**
+     * Returns the number of service listeners currently registered.
+     * 
+     * @return the number of registered service listeners
+     */
+    public int getListenerCount() {
+        return fListeners.size();
+    }
+
+    /**
+     * Returns the maximal number of service listeners registered at the same
+     * time.
+     * 
+     * @return the maximal number of service listeners
+     */
+    public synchronized int getPeakListenerCount() {
+        return fPeakListenerCount;
+    }
+
+    public String getProperty(String key) {
+        String value = fProperties.get(key);
+        return value != null ? value : System.getProperty(key);
+    }
+
+    /**
+     * Returns the number of registered services.
+     * 
+     * @return the number of registered services
+     */
+    public int getRegistrationCount() {
+        return fRegistrations.size();
+    }
+
+    public Object getService(ServiceReference reference) {
+        fGetServiceCounter.incrementAndGet();
+        return ((Registration) reference).getService();
+    }
+
+    /**
+     * Returns the number of calls of the {@link #getService(ServiceReference)}
+     * method.
+     * 
+     * @return the number of calls of the {@link #getService(ServiceReference)}
+     *         method
+     */
+    public long getServiceCallCount() {
+        return fGetServiceCounter.get();
+    }
+
+    public ServiceReference getServiceReference(String clazz) {
+        try {
+            ServiceReference[] references = getServiceReferences(clazz, null);
+            return references != null ? references[0] : null;
+        } catch (InvalidSyntaxException e) {
+            return null;
+        }
+    }
+
+    public ServiceReference[] getServiceReferences(String clazz, String filter)
+        throws InvalidSyntaxException {
+        Filter f = filter != null ? createFilter(filter) : null;
+        List<Registration> result = new ArrayList<Registration>();
+        for (Registration registration : fRegistrations) {
+            if (clazz != null
+                && !Arrays.asList(registration.fClasses).contains(clazz)) {
+                continue;
+            }
+            if (f != null && !f.match(registration)) {
+                continue;
+            }
+            result.add(registration);
+        }
+        if (result.isEmpty()) {
+            return null;
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result.toArray(new ServiceReference[result.size()]);
+    }
+
+    public Bundle installBundle(String location) throws BundleException {
+        throw new BundleException("Bundles are not supported");
+    }
+
+    public Bundle installBundle(String location, InputStream input)
+        throws BundleException {
+        throw new BundleException("Bundles are not supported");
+    }
+
+    @SuppressWarnings("rawtypes")
+    public ServiceRegistration registerService(
+        String clazz,
+        Object service,
+        Dictionary properties) {
+        return registerService(new String[] { clazz }, service, properties);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public ServiceRegistration registerService(
+        String[] clazzes,
+        Object service,
+        Dictionary properties) {
+        Registration registration = new Registration(
+            fIdCounter.incrementAndGet(),
+            clazzes.clone(),
+            service,
+            properties);
+        fRegistrations.add(registration);
+        fireEvent(ServiceEvent.REGISTERED, registration);
+        return registration;
+    }
+
+    public void removeBundleListener(BundleListener listener) {
+    }
+
+    public void removeFrameworkListener(FrameworkListener listener) {
+    }
+
+    public synchronized void removeServiceListener(ServiceListener listener) {
+        for (ListenerEntry entry : fListeners) {
+            if (entry.fListener == listener) {
+                fListeners.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Sets a framework property returned by the {@link #getProperty(String)}
+     * method.
+     * 
+     * @param key the name of the property
+     * @param value the value of the property
+     */
+    public void setProperty(String key, String value) {
+        fProperties.put(key, value);
+    }
+
+    public boolean ungetService(ServiceReference reference) {
+        return ((Registration) reference).ungetService();
+    }
+
+}
@@ -0,0 +1,391 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi.internal;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A simple implementation of LDAP-style OSGi filters used by the
+ * {@link InMemoryBundleContext}. It supports the <code>&amp;</code>,
+ * <code>|</code> and <code>!</code> operators, equality (with <code>*</code>
+ * wildcards), presence, approximate (case-insensitive) and ordering
+ * comparisons. Attribute names are case-insensitive.
+ * 
+ * @author kotelnikov
+ */
+public class SimpleFilter implements Filter {
+
+    private final static int AND = 1;
+
+    private final static int APPROX = 2;
+
+    private final static int EQUAL = 3;
+
+    private final static int GREATER = 4;
+
+    private final static int LESS = 5;
+
+    private final static int NOT = 6;
+
+    private final static int OR = 7;
+
+    private final static int PRESENT = 8;
+
+    /**
+     * Parses the given filter string.
+     * 
+     * @param filter the filter to parse
+     * @return the parsed filter
+     * @throws InvalidSyntaxException if the filter is invalid
+     */
+    public static SimpleFilter parse(String filter)
+        throws InvalidSyntaxException {
+        int[] pos = { 0 };
+        SimpleFilter result = parse(filter.trim(), pos);
+        if (pos[0] != filter.trim().length()) {
+            throw new InvalidSyntaxException("Unexpected characters at "
+                + pos[0], filter);
+        }
+        return result;
+    }
+
+    private static SimpleFilter parse(String str, int[] pos)
+        throws InvalidSyntaxException {
+        int begin = pos[0];
+        expect(str, pos, '(');
+        int op;
+        String attr = null;
+        String val = null;
+        SimpleFilter[] children = null;
+        char ch = charAt(str, pos[0]);
+        if (ch == '&' || ch == '|' || ch == '!') {
+            pos[0]++;
+            List<SimpleFilter> list = new ArrayList<SimpleFilter>();
+            while (charAt(str, pos[0]) == '(') {
+                list.add(parse(str, pos));
+            }
+            op = ch == '&' ? AND : ch == '|' ? OR : NOT;
+            if (list.isEmpty() || (op == NOT && list.size() != 1)) {
+                throw new InvalidSyntaxException(
+                    "Bad operands at " + pos[0],
+                    str);
+            }
+            children = list.toArray(new SimpleFilter[list.size()]);
+        } else {
+            int start = pos[0];
+            while (pos[0] < str.length()
+                && "=<>~()".indexOf(str.charAt(pos[0])) < 0) {
+                pos[0]++;
+            }
+            attr = str.substring(start, pos[0]).trim();
+            if (attr.length() == 0) {
+                throw new InvalidSyntaxException("Empty attribute at "
+                    + start, str);
+            }
+            char c = charAt(str, pos[0]);
+            if (c == '=') {
+                op = EQUAL;
+                pos[0]++;
+            } else if (c == '<' || c == '>' || c == '~') {
+                op = c == '<' ? LESS : c == '>' ? GREATER : APPROX;
+                pos[0]++;
+                expect(str, pos, '=');
+            } else {
+                throw new InvalidSyntaxException("Bad operator at " + pos[0], str);
+            }
+            StringBuilder value = new StringBuilder();
+            while (pos[0] < str.length() && str.charAt(pos[0]) != ')') {
+                char v = str.charAt(pos[0]++);
+                if (v == '\\' && pos[0] < str.length()) {
+                    value.append('\\');
+                    v = str.charAt(pos[0]++);
+                }
+                value.append(v);
+            }
+            val = value.toString();
+            if (op == EQUAL && "*".equals(val)) {
+                op = PRESENT;
+            }
+        }
+        expect(str, pos, ')');
+        return new SimpleFilter(op, attr, val, children, str.substring(
+            begin,
+            pos[0]));
+    }
+
+    private static char charAt(String str, int pos) {
+        return pos < str.length() ? str.charAt(pos) : 0;
+    }
+
+    private static void expect(String str, int[] pos, char ch)
+        throws InvalidSyntaxException {
+        if (charAt(str, pos[0]) != ch) {
+            throw new InvalidSyntaxException("'"
+                + ch
+                + "' is expected at "
+                + pos[0], str);
+        }
+        pos[0]++;
+    }
+
+    /**
+     * Removes escape characters from the given string.
+     */
+    private static String unescape(String str) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (ch == '\\' && i + 1 < str.length()) {
+                ch = str.charAt(++i);
+            }
+            buf.append(ch);
+        }
+        return buf.toString();
+    }
+
+    private final String fAttribute;
+
+    private final SimpleFilter[] fChildren;
+
+    private final int fOperator;
+
+    private final String fString;
+
+    private final String fValue;
+
+    private SimpleFilter(
+        int operator,
+        String attribute,
+        String value,
+        SimpleFilter[] children,
+        String string) {
+        fOperator = operator;
+        fAttribute = attribute;
+        fValue = value;
+        fChildren = children;
+        fString = string;
+    }
+
+    /**
+     * Compares the given property value with the value of this filter.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private boolean compare(Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof Collection<?>) {
+            for (Object v : (Collection<?>) value) {
+                if (compare(v)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (value.getClass().isArray()) {
+            int len = Array.getLength(value);
+            for (int i = 0; i < len; i++) {
+                if (compare(Array.get(value, i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (fOperator == PRESENT) {
+            return true;
+        }
+        String str = value.toString();
+        if (fOperator == EQUAL) {
+            if (fValue.indexOf('*') >= 0 && value instanceof String) {
+                return matchSubstring(str);
+            }
+            Object filterValue = convert(value, unescape(fValue));
+            return filterValue != null && filterValue.equals(value);
+        }
+        if (fOperator == APPROX) {
+            return str.trim().equalsIgnoreCase(unescape(fValue).trim());
+        }
+        Object filterValue = convert(value, unescape(fValue));
+        if (!(value instanceof Comparable) || filterValue == null) {
+            return false;
+        }
+        int cmp = ((Comparable) value).compareTo(filterValue);
+        return fOperator == LESS ? cmp <= 0 : cmp >= 0;
+    }
+
+    /**
+     * Converts the filter value to the type of the given property value.
+     */
+    private Object convert(Object value, String str) {
+        try {
+            str = str.trim();
+            if (value instanceof String) {
+                return str;
+            } else if (value instanceof Integer) {
+                return Integer.valueOf(str);
+            } else if (value instanceof Long) {
+                return Long.valueOf(str);
+            } else if (value instanceof Short) {
+                return Short.valueOf(str);
+            } else if (value instanceof Byte) {
+                return Byte.valueOf(str);
+            } else if (value instanceof Double) {
+                return Double.valueOf(str);
+            } else if (value instanceof Float) {
+                return Float.valueOf(str);
+            } else if (value instanceof Boolean) {
+                return Boolean.valueOf(str);
+            } else if (value instanceof Character) {
+                return str.length() > 0 ? str.charAt(0) : null;
+            }
+            return str.equals(value.toString()) ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof Filter) && fString.equals(obj.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return fString.hashCode();
+    }
+
+    /**
+     * Returns the value of the specified attribute; attribute names are
+     * case-insensitive.
+     */
+    private Object getValue(Dictionary<?, ?> dictionary, boolean ignoreCase) {
+        Object value = dictionary.get(fAttribute);
+        if (value == null && ignoreCase) {
+            Enumeration<?> keys = dictionary.keys();
+            while (keys.hasMoreElements()) {
+                Object key = keys.nextElement();
+                if (fAttribute.equalsIgnoreCase(String.valueOf(key))) {
+                    value = dictionary.get(key);
+                    break;
+                }
+            }
+        }
+        return value;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public boolean match(Dictionary dictionary) {
+        return match(dictionary, true);
+    }
+
+    private boolean match(Dictionary<?, ?> dictionary, boolean ignoreCase) {
+        switch (fOperator) {
+            case AND:
+                for (SimpleFilter child : fChildren) {
+                    if (!child.match(dictionary, ignoreCase)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (SimpleFilter child : fChildren) {
+                    if (child.match(dictionary, ignoreCase)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return !fChildren[0].match(dictionary, ignoreCase);
+            default:
+                return dictionary != null
+                    && compare(getValue(dictionary, ignoreCase));
+        }
+    }
+
+    public boolean match(ServiceReference reference) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        for (String key : reference.getPropertyKeys()) {
+            Object value = reference.getProperty(key);
+            if (value != null) {
+                properties.put(key, value);
+            }
+        }
+        return match(properties, true);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public boolean matchCase(Dictionary dictionary) {
+        return match(dictionary, false);
+    }
+
+    /**
+     * Checks if the given string matches the value of this filter containing
+     * wildcards.
+     */
+    private boolean matchSubstring(String str) {
+        List<String> parts = new ArrayList<String>();
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < fValue.length(); i++) {
+            char ch = fValue.charAt(i);
+            if (ch == '\\' && i + 1 < fValue.length()) {
+                buf.append(fValue.charAt(++i));
+            } else if (ch == '*') {
+                parts.add(buf.toString());
+                buf.setLength(0);
+            } else {
+                buf.append(ch);
+            }
+        }
+        parts.add(buf.toString());
+        int pos = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            String part = parts.get(i);
+            if (i == 0) {
+                if (!str.startsWith(part)) {
+                    return false;
+                }
+                pos = part.length();
+            } else if (i == parts.size() - 1) {
+                return str.length() - part.length() >= pos
+                    && str.endsWith(part);
+            } else {
+                int idx = str.indexOf(part, pos);
+                if (idx < 0) {
+                    return false;
+                }
+                pos = idx + part.length();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return fString;
+    }
+
+}
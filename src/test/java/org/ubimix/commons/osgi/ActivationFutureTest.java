@@ -0,0 +1,186 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of activation futures of {@link ObjectServiceTracker} and
+ * {@link MultiServiceTracker}.
+ * 
+ * @author kotelnikov
+ */
+public class ActivationFutureTest {
+
+    /**
+     * An object depending on the {@link IService} service.
+     */
+    public static class Consumer {
+
+        @OSGIServiceActivator
+        public void addService(IService service) {
+        }
+
+        @OSGIServiceDeactivator
+        public void removeService(IService service) {
+        }
+    }
+
+    /**
+     * The service required by managed objects.
+     */
+    public interface IService {
+    }
+
+    /**
+     * An object without dependencies.
+     */
+    public static class Independent {
+
+        @OSGIObjectActivator
+        public void activate() {
+        }
+    }
+
+    /**
+     * The implementation of the required service.
+     */
+    public static class Service implements IService {
+    }
+
+    private static Runnable newCallback(
+        final List<String> log,
+        final String name) {
+        return new Runnable() {
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        ActivationFuture<String> future = new ActivationFuture<String>();
+        List<String> log = new ArrayList<String>();
+        future.addCallback(newCallback(log, "first"));
+        future.addCallback(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("Callback failure");
+            }
+        });
+        future.addCallback(newCallback(log, "second"));
+        Assert.assertTrue(log.isEmpty());
+        future.complete("value");
+        Assert.assertEquals(Arrays.asList("first", "second"), log);
+        future.addCallback(newCallback(log, "third"));
+        Assert.assertEquals(Arrays.asList("first", "second", "third"), log);
+    }
+
+    @Test
+    public void testCompletion() throws Exception {
+        ActivationFuture<String> future = new ActivationFuture<String>();
+        Assert.assertFalse(future.isDone());
+        Assert.assertFalse(future.cancel(true));
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            Assert.fail("The future is not completed");
+        } catch (TimeoutException e) {
+        }
+        Assert.assertTrue(future.complete("value"));
+        Assert.assertFalse(future.complete("other"));
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals("value", future.get());
+        Assert.assertEquals("value", future.get(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testMultiTrackerFutures() throws Exception {
+        InMemoryBundleContext context = new InMemoryBundleContext();
+        MultiServiceTracker tracker = new MultiServiceTracker(
+            context,
+            new Independent(),
+            new Consumer());
+        tracker.setHintsFile(null);
+        Assert.assertTrue(tracker.getDeactivationFuture().isDone());
+        tracker.open();
+        ActivationFuture<MultiServiceTracker> activation = tracker
+            .getActivationFuture();
+        Assert.assertFalse(
+            "Only one of two objects is active",
+            activation.isDone());
+        Assert.assertFalse(tracker.getDeactivationFuture().isDone());
+
+        ServiceRegistration registration = context.registerService(
+            IService.class.getName(),
+            new Service(),
+            null);
+        Assert.assertTrue(activation.isDone());
+        Assert.assertSame(tracker, activation.get());
+        ActivationFuture<MultiServiceTracker> deactivation = tracker
+            .getDeactivationFuture();
+        Assert.assertFalse(deactivation.isDone());
+
+        registration.unregister();
+        Assert.assertFalse(tracker.getActivationFuture().isDone());
+        Assert.assertFalse(
+            "One of two objects is still active",
+            deactivation.isDone());
+        tracker.close();
+        Assert.assertTrue(deactivation.isDone());
+    }
+
+    @Test
+    public void testTrackerFutures() throws Exception {
+        InMemoryBundleContext context = new InMemoryBundleContext();
+        Consumer consumer = new Consumer();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            context,
+            consumer);
+        tracker.open();
+        ActivationFuture<Object> activation = tracker.getActivationFuture();
+        Assert.assertFalse(activation.isDone());
+        Assert.assertTrue(tracker.getDeactivationFuture().isDone());
+
+        ServiceRegistration registration = context.registerService(
+            IService.class.getName(),
+            new Service(),
+            null);
+        Assert.assertTrue(activation.isDone());
+        Assert.assertSame(consumer, activation.get());
+        Assert.assertSame(activation, tracker.getActivationFuture());
+        ActivationFuture<Object> deactivation = tracker
+            .getDeactivationFuture();
+        Assert.assertFalse(deactivation.isDone());
+
+        registration.unregister();
+        Assert.assertTrue(deactivation.isDone());
+        Assert.assertSame(consumer, deactivation.get());
+        Assert.assertFalse(tracker.getActivationFuture().isDone());
+        tracker.close();
+    }
+
+}
@@ -0,0 +1,189 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of activation hints learned and used by the
+ * {@link MultiServiceTracker}.
+ * 
+ * @author kotelnikov
+ */
+public class ActivationHintsTest {
+
+    /**
+     * An object logging its preparation and activation.
+     */
+    public static class Component {
+
+        private final List<String> fActivated;
+
+        private final String fName;
+
+        private final List<String> fPrepared;
+
+        public Component(
+            String name,
+            List<String> prepared,
+            List<String> activated) {
+            fName = name;
+            fPrepared = prepared;
+            fActivated = activated;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fActivated.add(fName);
+        }
+
+        @OSGIObjectPrepare
+        public void prepare() {
+            fPrepared.add(fName);
+        }
+    }
+
+    public static class First extends Component {
+        public First(List<String> prepared, List<String> activated) {
+            super("first", prepared, activated);
+        }
+    }
+
+    public static class Second extends Component {
+        public Second(List<String> prepared, List<String> activated) {
+            super("second", prepared, activated);
+        }
+    }
+
+    /**
+     * This executor runs tasks in the calling thread.
+     */
+    private final static Executor INLINE = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private List<String> fActivated;
+
+    private InMemoryBundleContext fContext;
+
+    private File fDir;
+
+    private List<String> fPrepared;
+
+    private MultiServiceTracker newTracker(Class<?>... types) {
+        Object[] objects = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            objects[i] = types[i] == First.class ? new First(
+                fPrepared,
+                fActivated) : new Second(fPrepared, fActivated);
+        }
+        MultiServiceTracker tracker = new MultiServiceTracker(
+            fContext,
+            objects);
+        tracker.setPreparationExecutor(INLINE);
+        return tracker;
+    }
+
+    private void run(Class<?>... types) throws Exception {
+        MultiServiceTracker tracker = newTracker(types);
+        tracker.open();
+        tracker.close();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        fDir = TestSupport.newDirectory();
+        fContext = new InMemoryBundleContext(fDir);
+        fActivated = Collections.synchronizedList(new ArrayList<String>());
+        fPrepared = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.delete(fDir);
+    }
+
+    @Test
+    public void testDisabledHintsFile() throws Exception {
+        MultiServiceTracker tracker = newTracker(First.class);
+        tracker.setHintsFile(null);
+        tracker.open();
+        tracker.close();
+        Assert.assertFalse(fContext
+            .getDataFile(MultiServiceTracker.HINTS_FILE)
+            .exists());
+    }
+
+    @Test
+    public void testLearnedOrder() throws Exception {
+        run(First.class, Second.class);
+        fActivated.clear();
+        run(Second.class, First.class);
+        Assert.assertEquals(Arrays.asList("first", "second"), fActivated);
+    }
+
+    @Test
+    public void testSlowObjectsArePreparedFirst() throws Exception {
+        ActivationHints hints = new ActivationHints();
+        hints.record(First.class.getName() + "#0", 1, 1000);
+        hints.record(Second.class.getName() + "#0", 2, 1000000);
+        MultiServiceTracker tracker = newTracker(First.class, Second.class);
+        tracker.setHints(hints);
+        tracker.open();
+        Assert.assertEquals(Arrays.asList("second", "first"), fPrepared);
+        Assert.assertEquals(Arrays.asList("first", "second"), fActivated);
+        tracker.close();
+    }
+
+    @Test
+    public void testStoredHints() throws Exception {
+        run(First.class, Second.class);
+        ActivationHints hints = new ActivationHints(
+            fContext,
+            MultiServiceTracker.HINTS_FILE);
+        String first = First.class.getName() + "#0";
+        String second = Second.class.getName() + "#0";
+        Assert.assertEquals(0, hints.getPosition(first));
+        Assert.assertEquals(1, hints.getPosition(second));
+        Assert.assertTrue(hints.getDuration(first) >= 0);
+        Assert.assertTrue(hints.getDuration(second) >= 0);
+        Assert.assertEquals(-1, hints.getDuration("unknown"));
+    }
+
+    @Test
+    public void testUnknownObjectsAreOpenedLast() throws Exception {
+        run(Second.class);
+        fActivated.clear();
+        run(First.class, Second.class);
+        Assert.assertEquals(Arrays.asList("second", "first"), fActivated);
+    }
+
+}
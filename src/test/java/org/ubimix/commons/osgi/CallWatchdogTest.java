@@ -0,0 +1,174 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of the {@link CallWatchdog} measuring calls of managed objects.
+ * 
+ * @author kotelnikov
+ */
+public class CallWatchdogTest {
+
+    /**
+     * The service required by the {@link SlowObject}.
+     */
+    public interface IService {
+    }
+
+    /**
+     * The implementation of the required service.
+     */
+    public static class Service implements IService {
+    }
+
+    /**
+     * An object with a slow activator.
+     */
+    public static class SlowObject {
+
+        private final long fDelay;
+
+        public SlowObject(long delay) {
+            fDelay = delay;
+        }
+
+        @OSGIObjectActivator
+        public void activate() throws InterruptedException {
+            Thread.sleep(fDelay);
+        }
+
+        @OSGIServiceActivator(min = 0)
+        public void addService(IService service) {
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() {
+        }
+    }
+
+    private static boolean isScannerRunning() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int count = Thread.enumerate(threads);
+        for (int i = 0; i < count; i++) {
+            if ("CallWatchdog".equals(threads[i].getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertNull(System.getProperty(CallWatchdog.ENABLED_PROPERTY));
+        Assert.assertNull(CallWatchdog.getDefault());
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            new InMemoryBundleContext(),
+            new SlowObject(0));
+        Assert.assertNull(tracker.getWatchdog());
+        System.setProperty(CallWatchdog.ENABLED_PROPERTY, "true");
+        try {
+            Assert.assertSame(
+                CallWatchdog.getInstance(),
+                CallWatchdog.getDefault());
+            tracker = new ObjectServiceTracker(
+                new InMemoryBundleContext(),
+                new SlowObject(0));
+            Assert.assertSame(CallWatchdog.getInstance(), tracker.getWatchdog());
+        } finally {
+            System.clearProperty(CallWatchdog.ENABLED_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testMultiTrackerWatchdog() throws Exception {
+        CallWatchdog watchdog = new CallWatchdog(1000, 100);
+        InMemoryBundleContext context = new InMemoryBundleContext();
+        MultiServiceTracker tracker = new MultiServiceTracker(
+            context,
+            new SlowObject(0),
+            new SlowObject(0));
+        tracker.setHintsFile(null);
+        tracker.setWatchdog(watchdog);
+        tracker.open();
+        context.registerService(IService.class.getName(), new Service(), null);
+        tracker.close();
+        CallStatistics activations = watchdog.getStatistics(SlowObject.class
+            .getMethod("activate"));
+        CallStatistics services = watchdog.getStatistics(SlowObject.class
+            .getMethod("addService", IService.class));
+        Assert.assertEquals(2, activations.getCount());
+        Assert.assertEquals(0, activations.getSlowCount());
+        Assert.assertEquals(2, services.getCount());
+        Assert.assertEquals(3, watchdog.getStatistics().size());
+    }
+
+    @Test
+    public void testScannerStops() throws Exception {
+        CallWatchdog watchdog = new CallWatchdog(1000, 10);
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            new InMemoryBundleContext(),
+            new SlowObject(0));
+        tracker.setWatchdog(watchdog);
+        tracker.open();
+        tracker.close();
+        Assert.assertTrue(TestSupport.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return !isScannerRunning();
+            }
+        }));
+    }
+
+    @Test
+    public void testSlowCall() throws Exception {
+        CallWatchdog watchdog = new CallWatchdog(50, 10);
+        Assert.assertEquals(50, watchdog.getThreshold());
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            new InMemoryBundleContext(),
+            new SlowObject(300));
+        tracker.setWatchdog(watchdog);
+        tracker.open();
+        tracker.close();
+        CallStatistics activator = watchdog.getStatistics(SlowObject.class
+            .getMethod("activate"));
+        Assert.assertEquals(1, activator.getCount());
+        Assert.assertEquals(1, activator.getSlowCount());
+        Assert.assertTrue(activator.getMaxTime() >= 300000000L);
+        StackTraceElement[][] samples = activator.getLastSlowSamples();
+        Assert.assertNotNull(samples);
+        Assert.assertTrue(samples.length > 0);
+        Assert.assertTrue(samples.length <= CallWatchdog.MAX_SAMPLES);
+        boolean found = false;
+        for (StackTraceElement element : samples[0]) {
+            found |= SlowObject.class.getName().equals(element.getClassName());
+        }
+        Assert.assertTrue("Samples contain the slow method", found);
+
+        CallStatistics deactivator = watchdog.getStatistics(SlowObject.class
+            .getMethod("deactivate"));
+        Assert.assertEquals(1, deactivator.getCount());
+        Assert.assertEquals(0, deactivator.getSlowCount());
+        Assert.assertEquals(0, deactivator.getLastSlowSamples().length);
+    }
+
+}
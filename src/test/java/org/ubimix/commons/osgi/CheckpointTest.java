@@ -0,0 +1,221 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of states of managed objects stored and restored between restarts of
+ * the bundle (see {@link OSGIObjectCheckpoint} and {@link OSGIObjectRestore}).
+ * 
+ * @author kotelnikov
+ */
+public class CheckpointTest {
+
+    /**
+     * An object accumulating values given at each activation.
+     */
+    public static class Cache {
+
+        private final String fValue;
+
+        private ArrayList<String> fValues = new ArrayList<String>();
+
+        public Cache(String value) {
+            fValue = value;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fValues.add(fValue);
+        }
+
+        @OSGIObjectCheckpoint(version = 1)
+        public ArrayList<String> checkpoint() {
+            return fValues;
+        }
+
+        public List<String> getValues() {
+            return fValues;
+        }
+
+        @OSGIObjectRestore
+        public void restore(ArrayList<String> values) {
+            fValues = values;
+        }
+    }
+
+    /**
+     * A cache storing its state in a new format.
+     */
+    public static class NewCache extends Cache {
+
+        public NewCache(String value) {
+            super(value);
+        }
+
+        @Override
+        @OSGIObjectCheckpoint(version = 2)
+        public ArrayList<String> checkpoint() {
+            return super.checkpoint();
+        }
+    }
+
+    /**
+     * A cache with a limited size of the stored state.
+     */
+    public static class SmallCache extends Cache {
+
+        public SmallCache(String value) {
+            super(value);
+        }
+
+        @Override
+        @OSGIObjectCheckpoint(version = 1, maxSize = 1024)
+        public ArrayList<String> checkpoint() {
+            return super.checkpoint();
+        }
+    }
+
+    private final static String KEY = "cache";
+
+    private InMemoryBundleContext fContext;
+
+    private File fDir;
+
+    private boolean exists() {
+        return new StateCheckpoint(fContext, KEY).exists();
+    }
+
+    private ObjectServiceTracker open(Cache cache) throws Exception {
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            cache);
+        tracker.setKey(KEY);
+        tracker.open();
+        return tracker;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        fDir = TestSupport.newDirectory();
+        fContext = new InMemoryBundleContext(fDir);
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.delete(fDir);
+        fDir = null;
+        fContext = null;
+    }
+
+    @Test
+    public void testKeyPrefixes() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            for (String pid : new String[] { "pid1", "pid2" }) {
+                MultiServiceTracker tracker = new MultiServiceTracker(
+                    fContext,
+                    new Cache(pid + ":" + i));
+                tracker.setKeyPrefix(pid);
+                tracker.open();
+                tracker.close();
+            }
+        }
+        Cache first = new Cache("pid1:2");
+        Cache second = new Cache("pid2:2");
+        MultiServiceTracker firstTracker = new MultiServiceTracker(
+            fContext,
+            first);
+        firstTracker.setKeyPrefix("pid1");
+        MultiServiceTracker secondTracker = new MultiServiceTracker(
+            fContext,
+            second);
+        secondTracker.setKeyPrefix("pid2");
+        firstTracker.open();
+        secondTracker.open();
+        Assert.assertEquals(
+            Arrays.asList("pid1:0", "pid1:1", "pid1:2"),
+            first.getValues());
+        Assert.assertEquals(
+            Arrays.asList("pid2:0", "pid2:1", "pid2:2"),
+            second.getValues());
+        firstTracker.close();
+        secondTracker.close();
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        char[] chars = new char[2048];
+        Arrays.fill(chars, 'x');
+        open(new SmallCache(new String(chars))).close();
+        Assert.assertFalse(
+            "States exceeding the maximal size are not stored",
+            exists());
+        open(new SmallCache("a")).close();
+        Assert.assertTrue(exists());
+    }
+
+    @Test
+    public void testOtherVersions() throws Exception {
+        open(new Cache("a")).close();
+        Cache cache = new NewCache("b");
+        open(cache).close();
+        Assert.assertEquals(Arrays.asList("b"), cache.getValues());
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        Cache cache = new Cache("a");
+        ObjectServiceTracker tracker = open(cache);
+        Assert.assertFalse(
+            "The state is not stored while the object is active",
+            exists());
+        tracker.close();
+        Assert.assertTrue(
+            "The state is stored when the object is deactivated",
+            exists());
+
+        cache = new Cache("b");
+        tracker = open(cache);
+        Assert.assertEquals(Arrays.asList("a", "b"), cache.getValues());
+        Assert.assertFalse(
+            "The state is removed when it is restored",
+            exists());
+        tracker.close();
+    }
+
+    @Test
+    public void testWithoutDataArea() throws Exception {
+        fContext = new InMemoryBundleContext();
+        Cache cache = new Cache("a");
+        open(cache).close();
+        cache = new Cache("b");
+        open(cache).close();
+        Assert.assertEquals(Arrays.asList("b"), cache.getValues());
+    }
+
+}
@@ -0,0 +1,251 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.cm.ManagedServiceFactory;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of objects managed for factory configurations by the
+ * {@link ConfigurableMultiserviceActivator}.
+ * 
+ * @author kotelnikov
+ */
+public class FactoryTest {
+
+    /**
+     * The activator creating one {@link Component} per factory configuration.
+     */
+    public static class Activator extends ConfigurableMultiserviceActivator {
+
+        /**
+         * Values of active components by PIDs of their configurations.
+         */
+        private final Map<String, Object> fActive = new HashMap<String, Object>();
+
+        /**
+         * The total number of activations.
+         */
+        private int fActivations;
+
+        /**
+         * The delay of component deactivations (in milliseconds).
+         */
+        private volatile long fDeactivationDelay;
+
+        /**
+         * This flag is <code>true</code> if two components of the same
+         * configuration were active at the same time.
+         */
+        private boolean fOverlap;
+
+        private synchronized void activate(String pid, Object value) {
+            fOverlap |= fActive.containsKey(pid);
+            fActive.put(pid, value);
+            fActivations++;
+        }
+
+        private synchronized void deactivate(String pid) {
+            fActive.remove(pid);
+        }
+
+        public synchronized int getActivations() {
+            return fActivations;
+        }
+
+        public synchronized Map<String, Object> getActive() {
+            return new HashMap<String, Object>(fActive);
+        }
+
+        @Override
+        protected String getFactoryPID() {
+            return "org.ubimix.commons.osgi.test.factory";
+        }
+
+        @Override
+        protected int getFactoryThreadCount() {
+            return 4;
+        }
+
+        @Override
+        protected Object[] getTrackedObjects(
+            String pid,
+            Dictionary<?, ?> properties) {
+            return new Object[] { new Component(
+                this,
+                pid,
+                properties.get("value")) };
+        }
+
+        public synchronized boolean hasOverlap() {
+            return fOverlap;
+        }
+    }
+
+    /**
+     * An object managed for one factory configuration.
+     */
+    public static class Component {
+
+        private final Activator fActivator;
+
+        private final String fPid;
+
+        private final Object fValue;
+
+        public Component(Activator activator, String pid, Object value) {
+            fActivator = activator;
+            fPid = pid;
+            fValue = value;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fActivator.activate(fPid, fValue);
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() throws InterruptedException {
+            Thread.sleep(fActivator.fDeactivationDelay);
+            fActivator.deactivate(fPid);
+        }
+    }
+
+    /**
+     * The number of factory configurations.
+     */
+    private final static int COUNT = 20;
+
+    private static Hashtable<String, Object> newProperties(Object value) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("value", value);
+        return properties;
+    }
+
+    private Activator fActivator;
+
+    private InMemoryBundleContext fContext;
+
+    private ManagedServiceFactory fFactory;
+
+    private boolean await(final int active, final int activations)
+        throws Exception {
+        return TestSupport.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return fActivator.getActive().size() == active
+                    && fActivator.getActivations() == activations;
+            }
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        fContext = new InMemoryBundleContext();
+        fActivator = new Activator();
+        fActivator.start(fContext);
+        fFactory = (ManagedServiceFactory) fContext.getService(fContext
+            .getServiceReference(ManagedServiceFactory.class.getName()));
+        Assert.assertNotNull(fFactory);
+        for (int i = 0; i < COUNT; i++) {
+            fFactory.updated("pid" + i, newProperties("v" + i));
+        }
+        Assert.assertTrue(await(COUNT, COUNT));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (fActivator != null) {
+            fActivator.stop(fContext);
+        }
+        fActivator = null;
+        fContext = null;
+        fFactory = null;
+    }
+
+    @Test
+    public void testConfigurations() throws Exception {
+        Assert.assertEquals("v0", fActivator.getActive().get("pid0"));
+        Assert.assertEquals(
+            "org.ubimix.commons.osgi.test.factory",
+            fFactory.getName());
+    }
+
+    @Test
+    public void testDeletedConfiguration() throws Exception {
+        fFactory.deleted("pid2");
+        Assert.assertTrue(await(COUNT - 1, COUNT));
+        Assert.assertFalse(fActivator.getActive().containsKey("pid2"));
+        fFactory.deleted("pid2");
+        fFactory.deleted("unknown");
+        Assert.assertTrue(await(COUNT - 1, COUNT));
+    }
+
+    @Test
+    public void testDeletedThenUpdatedConfiguration() throws Exception {
+        fActivator.fDeactivationDelay = 200;
+        fFactory.deleted("pid0");
+        fFactory.updated("pid0", newProperties("recreated"));
+        Assert.assertTrue(await(COUNT, COUNT + 1));
+        Assert.assertEquals("recreated", fActivator.getActive().get("pid0"));
+        Assert.assertFalse(
+            "Objects of the same configuration are not active together",
+            fActivator.hasOverlap());
+
+        // The configuration is deleted and re-created several times
+        for (int i = 0; i < 5; i++) {
+            fFactory.deleted("pid1");
+            fFactory.updated("pid1", newProperties("r" + i));
+        }
+        Assert.assertTrue(TestSupport.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return "r4".equals(fActivator.getActive().get("pid1"));
+            }
+        }));
+        Assert.assertFalse(fActivator.hasOverlap());
+        Assert.assertEquals(COUNT, fActivator.getActive().size());
+        fActivator.fDeactivationDelay = 0;
+    }
+
+    @Test
+    public void testModifiedConfigurations() throws Exception {
+        fFactory.updated("pid0", newProperties("v0"));
+        fFactory.updated("pid1", newProperties("changed"));
+        Assert.assertTrue(await(COUNT, COUNT + 1));
+        Assert.assertEquals("changed", fActivator.getActive().get("pid1"));
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        fActivator.stop(fContext);
+        Assert.assertTrue(fActivator.getActive().isEmpty());
+        fFactory.updated("pid0", newProperties("v0"));
+        Assert.assertTrue(fActivator.getActive().isEmpty());
+        fActivator = null;
+    }
+
+}
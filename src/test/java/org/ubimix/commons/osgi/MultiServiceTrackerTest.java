@@ -0,0 +1,284 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of the opening and closing of trackers by the
+ * {@link MultiServiceTracker}.
+ * 
+ * @author kotelnikov
+ */
+public class MultiServiceTrackerTest {
+
+    /**
+     * An object with the default priority.
+     */
+    public static class Background extends Component {
+
+        public Background(Log log) {
+            super(log, "background");
+        }
+    }
+
+    /**
+     * An executor keeping submitted tasks until they are explicitly run.
+     */
+    public static class CollectingExecutor implements Executor {
+
+        private final List<Runnable> fTasks = new ArrayList<Runnable>();
+
+        public void execute(Runnable command) {
+            fTasks.add(command);
+        }
+
+        public void run(boolean reverse) {
+            List<Runnable> tasks = new ArrayList<Runnable>(fTasks);
+            fTasks.clear();
+            if (reverse) {
+                Collections.reverse(tasks);
+            }
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * A base class of managed objects with an optional dependency.
+     */
+    public static class Component {
+
+        private final Log fLog;
+
+        private final String fName;
+
+        public Component(Log log, String name) {
+            fLog = log;
+            fName = name;
+        }
+
+        @OSGIObjectActivator
+        public void activate() throws Exception {
+            fLog.add(fName + ".activate");
+        }
+
+        @OSGIServiceActivator(min = 0)
+        public void addService(IService service) {
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() {
+            fLog.add(fName + ".deactivate");
+        }
+    }
+
+    /**
+     * An object with a high priority.
+     */
+    @OSGIObjectPriority(10)
+    public static class Critical extends Component {
+
+        public Critical(Log log) {
+            super(log, "critical");
+        }
+    }
+
+    /**
+     * The optional dependency of all objects.
+     */
+    public interface IService {
+    }
+
+    /**
+     * A thread-safe log of calls.
+     */
+    public static class Log {
+
+        private final List<String> fEntries = new ArrayList<String>();
+
+        public synchronized void add(String entry) {
+            fEntries.add(entry);
+        }
+
+        public synchronized List<String> getEntries() {
+            return new ArrayList<String>(fEntries);
+        }
+    }
+
+    /**
+     * An object with a low priority.
+     */
+    @OSGIObjectPriority(-5)
+    public static class Low extends Component {
+
+        public Low(Log log) {
+            super(log, "low");
+        }
+    }
+
+    /**
+     * An object with a slow activator.
+     */
+    public static class Slow extends Component {
+
+        private final CountDownLatch fStarted = new CountDownLatch(1);
+
+        public Slow(Log log) {
+            super(log, "slow");
+        }
+
+        @Override
+        @OSGIObjectActivator
+        public void activate() throws Exception {
+            fStarted.countDown();
+            Thread.sleep(200);
+            super.activate();
+        }
+    }
+
+    private InMemoryBundleContext fContext;
+
+    private Log fLog;
+
+    private MultiServiceTracker newTracker(Object... objects) {
+        MultiServiceTracker tracker = new MultiServiceTracker(
+            fContext,
+            objects);
+        tracker.setHintsFile(null);
+        return tracker;
+    }
+
+    @Before
+    public void setUp() {
+        fContext = new InMemoryBundleContext();
+        fLog = new Log();
+    }
+
+    @After
+    public void tearDown() {
+        fContext = null;
+        fLog = null;
+    }
+
+    @Test
+    public void testCloseBeforeTasksAreRun() throws Exception {
+        MultiServiceTracker tracker = newTracker(
+            new Background(fLog),
+            new Critical(fLog));
+        CollectingExecutor executor = new CollectingExecutor();
+        tracker.open(executor);
+        tracker.close();
+        Assert.assertTrue(fLog.getEntries().isEmpty());
+
+        // Trackers never opened are not closed, so they can be opened again
+        tracker.open();
+        Assert.assertTrue(tracker.getActivationFuture().isDone());
+        Assert.assertEquals(
+            Arrays.asList("critical.activate", "background.activate"),
+            fLog.getEntries());
+
+        // Stale tasks do not open trackers one more time
+        executor.run(false);
+        Assert.assertEquals(2, fLog.getEntries().size());
+
+        tracker.close();
+        Assert.assertTrue(tracker.getDeactivationFuture().isDone());
+        Assert.assertEquals(4, fLog.getEntries().size());
+
+        tracker.open();
+        Assert.assertTrue(tracker.getActivationFuture().isDone());
+        tracker.close();
+        Assert.assertEquals(8, fLog.getEntries().size());
+    }
+
+    @Test
+    public void testCloseWaitsForOpeningTrackers() throws Exception {
+        Slow slow = new Slow(fLog);
+        MultiServiceTracker tracker = newTracker(slow, new Background(fLog));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            tracker.open(executor);
+            Assert.assertTrue(slow.fStarted.await(
+                TestSupport.TIMEOUT,
+                TimeUnit.MILLISECONDS));
+            tracker.close();
+            Assert.assertEquals(
+                Arrays.asList("slow.activate", "slow.deactivate"),
+                fLog.getEntries());
+            Assert.assertTrue(tracker.getDeactivationFuture().isDone());
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(executor.awaitTermination(
+            TestSupport.TIMEOUT,
+            TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, fLog.getEntries().size());
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        MultiServiceTracker tracker = newTracker(
+            new Low(fLog),
+            new Background(fLog),
+            new Critical(fLog));
+        tracker.open();
+        Assert.assertEquals(Arrays.asList(
+            "critical.activate",
+            "background.activate",
+            "low.activate"), fLog.getEntries());
+        tracker.close();
+    }
+
+    @Test
+    public void testPriorityOrderWithExecutor() throws Exception {
+        MultiServiceTracker tracker = newTracker(
+            new Low(fLog),
+            new Background(fLog),
+            new Critical(fLog));
+        CollectingExecutor executor = new CollectingExecutor();
+        tracker.open(executor);
+        Assert.assertFalse(tracker.getActivationFuture().isDone());
+
+        // Tasks open pending trackers by priorities whatever is their order
+        executor.run(true);
+        Assert.assertEquals(Arrays.asList(
+            "critical.activate",
+            "background.activate",
+            "low.activate"), fLog.getEntries());
+        Assert.assertTrue(tracker.getActivationFuture().isDone());
+        tracker.close();
+        Assert.assertEquals(6, fLog.getEntries().size());
+    }
+
+}
@@ -0,0 +1,241 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of the per-tracker state of {@link ObjectServiceTracker}s: shared
+ * class information, lazily created futures, listeners and the estimated heap
+ * footprint.
+ * 
+ * @author kotelnikov
+ */
+public class ObjectServiceTrackerTest {
+
+    /**
+     * An object depending on the {@link IService}.
+     */
+    public static class Consumer {
+
+        @OSGIServiceActivator(min = 0)
+        public void addService(IService service) {
+        }
+
+        @OSGIServiceDeactivator
+        public void removeService(IService service) {
+        }
+    }
+
+    /**
+     * The service required by the {@link Consumer}.
+     */
+    public interface IService {
+    }
+
+    /**
+     * A listener recording notifications.
+     */
+    public static class Listener implements ObjectServiceListener {
+
+        private final List<String> fCalls;
+
+        private final String fName;
+
+        public Listener(List<String> calls, String name) {
+            fCalls = calls;
+            fName = name;
+        }
+
+        public void onActivate(ObjectServiceTracker tracker, long duration) {
+            fCalls.add(fName + ".activate");
+        }
+
+        public void onDeactivate(ObjectServiceTracker tracker, long duration) {
+            fCalls.add(fName + ".deactivate");
+        }
+    }
+
+    /**
+     * A tracker subclass using the deprecated protected fields.
+     */
+    public static class LegacyTracker extends ObjectServiceTracker {
+
+        public LegacyTracker(BundleContext context, Object object) {
+            super(context, object);
+        }
+
+        @SuppressWarnings("deprecation")
+        public Map<Class<?>, List<Method>> getLoaders() {
+            return fServiceLoaders;
+        }
+
+        @SuppressWarnings("deprecation")
+        public Map<Class<?>, List<Method>> getUnloaders() {
+            return fServiceUnloaders;
+        }
+    }
+
+    @Test
+    public void testDeprecatedFields() throws Exception {
+        LegacyTracker tracker = new LegacyTracker(
+            new InMemoryBundleContext(),
+            new Consumer());
+        Assert.assertSame(tracker.getServiceLoaders(), tracker.getLoaders());
+        Assert.assertSame(
+            tracker.getServiceUnloaders(),
+            tracker.getUnloaders());
+        Assert.assertEquals(
+            Arrays.asList(Consumer.class.getMethod(
+                "addService",
+                IService.class)),
+            tracker.getLoaders().get(IService.class));
+        Assert.assertEquals(
+            Arrays.asList(Consumer.class.getMethod(
+                "removeService",
+                IService.class)),
+            tracker.getUnloaders().get(IService.class));
+    }
+
+    @Test
+    public void testFootprint() throws Exception {
+        InMemoryBundleContext context = new InMemoryBundleContext();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            context,
+            new Consumer());
+        long footprint = tracker.getFootprint();
+        Assert.assertTrue(footprint > 0);
+
+        // Futures and listeners are allocated only when they are requested
+        tracker.getActivationFuture();
+        Assert.assertEquals(
+            footprint + HeapFootprint.ACTIVATION_FUTURE,
+            tracker.getFootprint());
+        ObjectServiceListener listener = new Listener(
+            new ArrayList<String>(),
+            "a");
+        tracker.addListener(listener);
+        Assert.assertEquals(footprint
+            + HeapFootprint.ACTIVATION_FUTURE
+            + HeapFootprint.array(1), tracker.getFootprint());
+        tracker.removeListener(listener);
+
+        MultiServiceTracker multi = new MultiServiceTracker(
+            context,
+            new Consumer(),
+            new Consumer());
+        Map<String, Long> footprints = multi.getFootprints();
+        Assert.assertEquals(
+            Arrays.asList(
+                Consumer.class.getName() + "#0",
+                Consumer.class.getName() + "#1"),
+            new ArrayList<String>(footprints.keySet()));
+        long total = 0;
+        for (Long value : footprints.values()) {
+            total += value;
+        }
+        Assert.assertEquals(total, multi.getFootprint());
+    }
+
+    @Test
+    public void testLazyFutures() throws Exception {
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            new InMemoryBundleContext(),
+            new Consumer());
+        Assert.assertTrue(tracker.getDeactivationFuture().isDone());
+        ActivationFuture<Object> activation = tracker.getActivationFuture();
+        Assert.assertFalse(activation.isDone());
+        Assert.assertSame(activation, tracker.getActivationFuture());
+
+        tracker.open();
+        Assert.assertTrue(activation.isDone());
+        Assert.assertTrue(tracker.getActivationFuture().isDone());
+        ActivationFuture<Object> deactivation = tracker
+            .getDeactivationFuture();
+        Assert.assertFalse(deactivation.isDone());
+
+        tracker.close();
+        Assert.assertTrue(deactivation.isDone());
+        Assert.assertFalse(tracker.getActivationFuture().isDone());
+        Assert.assertTrue(tracker.getDeactivationFuture().isDone());
+    }
+
+    @Test
+    public void testListeners() throws Exception {
+        List<String> calls = new ArrayList<String>();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            new InMemoryBundleContext(),
+            new Consumer());
+        Listener first = new Listener(calls, "first");
+        Listener second = new Listener(calls, "second");
+        Listener third = new Listener(calls, "third");
+        tracker.addListener(first);
+        tracker.addListener(second);
+        tracker.addListener(third);
+        tracker.removeListener(second);
+        tracker.removeListener(new Listener(calls, "unknown"));
+        tracker.open();
+        tracker.close();
+        Assert.assertEquals(Arrays.asList(
+            "first.activate",
+            "third.activate",
+            "first.deactivate",
+            "third.deactivate"), calls);
+
+        calls.clear();
+        tracker.removeListener(first);
+        tracker.removeListener(third);
+        tracker.removeListener(third);
+        tracker.open();
+        tracker.close();
+        Assert.assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    public void testSharedClassInformation() {
+        InMemoryBundleContext context = new InMemoryBundleContext();
+        ObjectServiceTracker first = new ObjectServiceTracker(
+            context,
+            new Consumer());
+        ObjectServiceTracker second = new ObjectServiceTracker(
+            context,
+            new Consumer());
+        Assert.assertSame(
+            first.getServiceLoaders(),
+            second.getServiceLoaders());
+        Assert.assertSame(
+            first.getServiceUnloaders(),
+            second.getServiceUnloaders());
+        try {
+            first.getServiceLoaders().clear();
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // Shared methods can not be modified
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of preparation methods of managed objects (see
+ * {@link OSGIObjectPrepare}).
+ * 
+ * @author kotelnikov
+ */
+public class PreparationTest {
+
+    /**
+     * An object with a failing preparation method.
+     */
+    public static class FailingObject {
+
+        private final List<String> fCalls;
+
+        public FailingObject(List<String> calls) {
+            fCalls = calls;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fCalls.add("activate");
+        }
+
+        @OSGIServiceActivator
+        public void addService(IService service) {
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() {
+            fCalls.add("deactivate");
+        }
+
+        @OSGIObjectPrepare
+        public void prepare() throws IOException {
+            throw new IOException("Preparation failed");
+        }
+    }
+
+    /**
+     * The service required by managed objects.
+     */
+    public interface IService {
+    }
+
+    /**
+     * An object loading its data in a preparation method.
+     */
+    public static class PreparedObject {
+
+        private final List<String> fCalls;
+
+        private final long fPreparationTime;
+
+        public PreparedObject(List<String> calls, long preparationTime) {
+            fCalls = calls;
+            fPreparationTime = preparationTime;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fCalls.add("activate");
+        }
+
+        @OSGIServiceActivator
+        public void addService(IService service) {
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() {
+            fCalls.add("deactivate");
+        }
+
+        @OSGIObjectPrepare
+        public void prepare() throws InterruptedException {
+            Thread.sleep(fPreparationTime);
+            fCalls.add("prepare:" + Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * The implementation of the required service.
+     */
+    public static class Service implements IService {
+    }
+
+    /**
+     * The preparation time (in milliseconds) of {@link PreparedObject}s.
+     */
+    private final static long PREPARATION_TIME = 200;
+
+    private List<String> fCalls;
+
+    private InMemoryBundleContext fContext;
+
+    @Before
+    public void setUp() {
+        fContext = new InMemoryBundleContext();
+        fCalls = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        fContext = null;
+        fCalls = null;
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            new PreparedObject(fCalls, 0));
+        tracker.setPreparationExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        tracker.open();
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertTrue(fCalls.isEmpty());
+        tasks.get(0).run();
+        Assert.assertEquals(1, fCalls.size());
+        fContext.registerService(IService.class.getName(), new Service(), null);
+        Assert.assertTrue(tracker.getActivationFuture().isDone());
+        tracker.close();
+    }
+
+    @Test
+    public void testFailedPreparation() throws Exception {
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            new FailingObject(fCalls));
+        tracker.open();
+        Throwable error = null;
+        try {
+            fContext.registerService(
+                IService.class.getName(),
+                new Service(),
+                null);
+        } catch (RuntimeException e) {
+            error = e.getCause();
+        }
+        Assert.assertTrue(
+            "The preparation failure is reported as is",
+            error instanceof IOException);
+        Assert.assertFalse(tracker.getActivationFuture().isDone());
+        Assert.assertTrue(fCalls.isEmpty());
+        tracker.close();
+        Assert.assertTrue(
+            "Deactivators are not called for objects which were not activated",
+            fCalls.isEmpty());
+    }
+
+    @Test
+    public void testPreparation() throws Exception {
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            new PreparedObject(fCalls, PREPARATION_TIME));
+        long start = System.nanoTime();
+        tracker.open();
+        long openTime = (System.nanoTime() - start) / 1000000;
+        Assert.assertTrue(
+            "The tracker is opened without waiting for the preparation",
+            openTime < PREPARATION_TIME);
+        Assert.assertTrue(fCalls.isEmpty());
+
+        fContext.registerService(IService.class.getName(), new Service(), null);
+        Assert.assertTrue(tracker.getActivationFuture().isDone());
+        Assert.assertEquals(2, fCalls.size());
+        Assert.assertTrue(fCalls.get(0).startsWith("prepare:"));
+        Assert.assertEquals("activate", fCalls.get(1));
+        Assert.assertFalse(
+            "The object is prepared in background",
+            fCalls.get(0).endsWith(Thread.currentThread().getName()));
+        tracker.close();
+    }
+
+    @Test
+    public void testPreparationOnReopen() throws Exception {
+        fContext.registerService(IService.class.getName(), new Service(), null);
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            new PreparedObject(fCalls, 0));
+        tracker.open();
+        tracker.close();
+        tracker.open();
+        tracker.close();
+        Assert.assertEquals(6, fCalls.size());
+        Assert.assertTrue(fCalls.get(3).startsWith("prepare:"));
+        Assert.assertEquals("activate", fCalls.get(4));
+        Assert.assertEquals("deactivate", fCalls.get(5));
+    }
+
+}
@@ -0,0 +1,152 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of the {@link ServiceCallMonitor} measuring calls to published
+ * services.
+ * 
+ * @author kotelnikov
+ */
+public class ServiceCallMonitorTest {
+
+    /**
+     * The interface of the published service.
+     */
+    public interface IService {
+
+        String echo(String message);
+
+        void fail() throws IllegalStateException;
+    }
+
+    /**
+     * An object publishing the {@link IService}.
+     */
+    public static class Provider implements IService {
+
+        public String echo(String message) {
+            return message;
+        }
+
+        public void fail() throws IllegalStateException {
+            throw new IllegalStateException("Failure");
+        }
+
+        @OSGIService
+        public IService getService() {
+            return this;
+        }
+    }
+
+    private static Object getService(InMemoryBundleContext context) {
+        ServiceReference reference = context.getServiceReference(IService.class
+            .getName());
+        return context.getService(reference);
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertNull(System
+            .getProperty(ServiceCallMonitor.ENABLED_PROPERTY));
+        Assert.assertNull(ServiceCallMonitor.getDefault());
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            new InMemoryBundleContext(),
+            new Provider());
+        Assert.assertNull(tracker.getServiceMonitor());
+    }
+
+    @Test
+    public void testMonitoredService() throws Exception {
+        ServiceCallMonitor monitor = new ServiceCallMonitor();
+        InMemoryBundleContext context = new InMemoryBundleContext();
+        Provider provider = new Provider();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            context,
+            provider);
+        tracker.setServiceMonitor(monitor);
+        tracker.open();
+        IService service = (IService) getService(context);
+        Assert.assertNotSame(provider, service);
+        Assert.assertTrue(Proxy.isProxyClass(service.getClass()));
+
+        Assert.assertEquals("hello", service.echo("hello"));
+        Assert.assertEquals("world", service.echo("world"));
+        try {
+            service.fail();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // The original exception is thrown
+        }
+        service.hashCode();
+        service.toString();
+
+        CallStatistics echo = monitor.getStatistics(IService.class.getMethod(
+            "echo",
+            String.class));
+        Assert.assertEquals(2, echo.getCount());
+        Assert.assertEquals(IService.class.getName() + "#echo", echo
+            .getName());
+        CallStatistics fail = monitor.getStatistics(IService.class
+            .getMethod("fail"));
+        Assert.assertEquals(1, fail.getCount());
+        Assert.assertEquals(
+            "Methods of the Object class are not measured",
+            2,
+            monitor.getStatistics().size());
+        tracker.close();
+        Assert.assertNull(context.getServiceReference(IService.class
+            .getName()));
+    }
+
+    @Test
+    public void testStatisticsDoNotPinMethods() throws Exception {
+        final ServiceCallMonitor monitor = new ServiceCallMonitor();
+        Method method = IService.class.getMethod("fail");
+        monitor.getStatistics(method).record(1, false, null);
+        Assert.assertEquals(1, monitor.getStatistics().size());
+        method = null;
+        Assert.assertTrue(TestSupport.await(new Callable<Boolean>() {
+            public Boolean call() {
+                System.gc();
+                return monitor.getStatistics().isEmpty();
+            }
+        }));
+    }
+
+    @Test
+    public void testUnsupportedServices() {
+        ServiceCallMonitor monitor = new ServiceCallMonitor();
+        Provider provider = new Provider();
+        Assert.assertSame(provider, monitor.wrap(Provider.class, provider));
+        Assert.assertSame(provider, monitor.wrap(Runnable.class, provider));
+        Assert.assertTrue(Proxy.isProxyClass(monitor.wrap(
+            IService.class,
+            provider).getClass()));
+    }
+
+}
@@ -0,0 +1,282 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of the demand-driven stream of service events published by the
+ * {@link ServiceEventPublisher}.
+ * 
+ * @author kotelnikov
+ */
+public class ServiceEventPublisherTest {
+
+    /**
+     * An object depending on the {@link IService} service.
+     */
+    public static class Consumer {
+
+        @OSGIServiceActivator
+        public void addService(IService service) {
+        }
+    }
+
+    /**
+     * The type of published services.
+     */
+    public interface IService {
+    }
+
+    /**
+     * This subscriber records all received notifications.
+     */
+    private static class Recorder
+        implements
+        ServiceEventPublisher.Subscriber {
+
+        private boolean fCompleted;
+
+        private Throwable fError;
+
+        private final List<String> fEvents = Collections
+            .synchronizedList(new ArrayList<String>());
+
+        private ServiceEventPublisher.Subscription fSubscription;
+
+        public void onComplete() {
+            fCompleted = true;
+        }
+
+        public void onError(Throwable error) {
+            fError = error;
+        }
+
+        public void onNext(ServiceEventPublisher.Event event) {
+            String type = event.getType() == ServiceEventPublisher.Event.ADDED
+                ? "added"
+                : event.getType() == ServiceEventPublisher.Event.MODIFIED
+                    ? "modified"
+                    : "removed";
+            fEvents.add(type + ":" + event.getProperties().get("name"));
+        }
+
+        public void onSubscribe(ServiceEventPublisher.Subscription subscription) {
+            fSubscription = subscription;
+        }
+    }
+
+    /**
+     * The implementation of published services.
+     */
+    public static class Service implements IService {
+    }
+
+    /**
+     * This executor delivers events in the calling thread.
+     */
+    private final static Executor INLINE = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private InMemoryBundleContext fContext;
+
+    private static Map<String, Object> newProperties(String name) {
+        return Collections.<String, Object> singletonMap("name", name);
+    }
+
+    private ServiceReference newReference() {
+        return fContext
+            .registerService(IService.class.getName(), new Service(), null)
+            .getReference();
+    }
+
+    @Before
+    public void setUp() {
+        fContext = new InMemoryBundleContext();
+    }
+
+    @Test
+    public void testBackpressure() {
+        ServiceEventPublisher publisher = new ServiceEventPublisher(
+            IService.class);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, INLINE);
+        Assert.assertNotNull(recorder.fSubscription);
+        for (int i = 0; i < 3; i++) {
+            publisher.publish(
+                ServiceEventPublisher.Event.ADDED,
+                newReference(),
+                new Service(),
+                newProperties("s" + i));
+        }
+        Assert.assertTrue(recorder.fEvents.isEmpty());
+        recorder.fSubscription.request(2);
+        Assert.assertEquals(
+            Arrays.asList("added:s0", "added:s1"),
+            recorder.fEvents);
+        recorder.fSubscription.request(1);
+        Assert.assertEquals(
+            Arrays.asList("added:s0", "added:s1", "added:s2"),
+            recorder.fEvents);
+    }
+
+    @Test
+    public void testCloseCompletesAfterPendingEvents() {
+        ServiceEventPublisher publisher = new ServiceEventPublisher(
+            IService.class);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, INLINE);
+        publisher.publish(
+            ServiceEventPublisher.Event.ADDED,
+            newReference(),
+            new Service(),
+            newProperties("s"));
+        publisher.close();
+        Assert.assertFalse(recorder.fCompleted);
+        recorder.fSubscription.request(1);
+        Assert.assertEquals(Arrays.asList("added:s"), recorder.fEvents);
+        Assert.assertTrue(recorder.fCompleted);
+    }
+
+    @Test
+    public void testConflation() {
+        ServiceEventPublisher publisher = new ServiceEventPublisher(
+            IService.class);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, INLINE);
+        ServiceReference first = newReference();
+        ServiceReference second = newReference();
+        publisher.publish(
+            ServiceEventPublisher.Event.ADDED,
+            first,
+            new Service(),
+            newProperties("a"));
+        publisher.publish(
+            ServiceEventPublisher.Event.MODIFIED,
+            first,
+            new Service(),
+            newProperties("b"));
+        publisher.publish(
+            ServiceEventPublisher.Event.ADDED,
+            second,
+            new Service(),
+            newProperties("c"));
+        publisher.publish(
+            ServiceEventPublisher.Event.REMOVED,
+            second,
+            new Service(),
+            newProperties("c"));
+        recorder.fSubscription.request(10);
+        Assert.assertEquals(Arrays.asList("added:b"), recorder.fEvents);
+    }
+
+    @Test
+    public void testOverflowCancelsSubscription() {
+        ServiceEventPublisher publisher = new ServiceEventPublisher(
+            IService.class,
+            2);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, INLINE);
+        for (int i = 0; i < 3; i++) {
+            publisher.publish(
+                ServiceEventPublisher.Event.ADDED,
+                newReference(),
+                new Service(),
+                newProperties("s" + i));
+        }
+        Assert.assertTrue(recorder.fError instanceof IllegalStateException);
+        recorder.fSubscription.request(10);
+        Assert.assertTrue(recorder.fEvents.isEmpty());
+    }
+
+    @Test
+    public void testSnapshotForNewSubscribers() {
+        ServiceEventPublisher publisher = new ServiceEventPublisher(
+            IService.class);
+        ServiceReference first = newReference();
+        ServiceReference second = newReference();
+        publisher.publish(
+            ServiceEventPublisher.Event.ADDED,
+            first,
+            new Service(),
+            newProperties("a"));
+        publisher.publish(
+            ServiceEventPublisher.Event.ADDED,
+            second,
+            new Service(),
+            newProperties("b"));
+        publisher.publish(
+            ServiceEventPublisher.Event.MODIFIED,
+            first,
+            new Service(),
+            newProperties("c"));
+        publisher.publish(
+            ServiceEventPublisher.Event.REMOVED,
+            second,
+            new Service(),
+            newProperties("b"));
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, INLINE);
+        recorder.fSubscription.request(10);
+        Assert.assertEquals(Arrays.asList("added:c"), recorder.fEvents);
+    }
+
+    @Test
+    public void testTrackerPublisher() throws Exception {
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            new Consumer());
+        tracker.open();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("name", "a");
+        ServiceRegistration registration = fContext.registerService(
+            IService.class.getName(),
+            new Service(),
+            properties);
+        Assert.assertNull(tracker.getPublisher(String.class));
+        Recorder recorder = new Recorder();
+        tracker.getPublisher(IService.class).subscribe(recorder, INLINE);
+        recorder.fSubscription.request(10);
+        properties.put("name", "b");
+        registration.setProperties(properties);
+        registration.unregister();
+        Assert.assertEquals(
+            Arrays.asList("added:a", "modified:b", "removed:b"),
+            recorder.fEvents);
+        Assert.assertFalse(recorder.fCompleted);
+        tracker.close();
+        Assert.assertTrue(recorder.fCompleted);
+    }
+
+}
@@ -0,0 +1,257 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of service events recorded by the {@link ServiceEventRecorder} and
+ * replayed by the {@link ServiceEventReplayer}.
+ * 
+ * @author kotelnikov
+ */
+public class ServiceEventReplayerTest {
+
+    /**
+     * An object depending on the {@link IService}.
+     */
+    public static class Consumer {
+
+        private final List<String> fCalls = new ArrayList<String>();
+
+        @OSGIServiceActivator
+        public synchronized void addService(
+            IService service,
+            Map<String, Object> params) {
+            fCalls.add("add:" + params.get("name"));
+        }
+
+        public synchronized List<String> getCalls() {
+            return new ArrayList<String>(fCalls);
+        }
+
+        @OSGIServiceDeactivator
+        public synchronized void removeService(
+            IService service,
+            Map<String, Object> params) {
+            fCalls.add("remove:" + params.get("name"));
+        }
+    }
+
+    /**
+     * The service tracked by {@link Consumer}s.
+     */
+    public interface IService {
+    }
+
+    /**
+     * An object publishing the {@link IService}.
+     */
+    public static class Provider implements IService {
+
+        @OSGIService
+        public IService getService(Dictionary<String, Object> params) {
+            params.put("name", "provided");
+            return this;
+        }
+    }
+
+    /**
+     * The implementation of the {@link IService} registered by tests.
+     */
+    public static class Service implements IService {
+    }
+
+    private static Hashtable<String, Object> newProperties(String name) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("name", name);
+        return properties;
+    }
+
+    private InMemoryBundleContext fContext;
+
+    private ByteArrayOutputStream fLog;
+
+    private ServiceEventRecorder fRecorder;
+
+    private ServiceReference[] getServices(BundleContext context)
+        throws Exception {
+        return context.getServiceReferences(IService.class.getName(), null);
+    }
+
+    private ServiceEventReplayer newReplayer() throws IOException {
+        fRecorder.close();
+        return new ServiceEventReplayer(new ByteArrayInputStream(fLog
+            .toByteArray()));
+    }
+
+    private ObjectServiceTracker open(BundleContext context, Object object)
+        throws Exception {
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            context,
+            object);
+        tracker.setRecorder(fRecorder);
+        tracker.open();
+        return tracker;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        fContext = new InMemoryBundleContext();
+        fLog = new ByteArrayOutputStream();
+        fRecorder = new ServiceEventRecorder(fLog);
+    }
+
+    @After
+    public void tearDown() {
+        fRecorder.close();
+        fContext = null;
+        fLog = null;
+        fRecorder = null;
+    }
+
+    @Test
+    public void testClosedTrackersDoNotRemoveServices() throws Exception {
+        fContext.registerService(
+            IService.class.getName(),
+            new Service(),
+            newProperties("a"));
+        ObjectServiceTracker first = open(fContext, new Consumer());
+        ObjectServiceTracker second = open(fContext, new Consumer());
+        first.close();
+        second.close();
+        ServiceEventReplayer replayer = newReplayer();
+        Assert.assertEquals(2, replayer.getEvents().size());
+        for (ServiceEventReplayer.Event event : replayer.getEvents()) {
+            Assert.assertEquals(
+                ServiceEventPublisher.Event.ADDED,
+                event.getType());
+        }
+
+        // The service is still available at the end of the replay
+        BundleContext context = ServiceEventReplayer.newContext();
+        replayer.replay(context, getClass().getClassLoader(), 0);
+        Assert.assertEquals(1, getServices(context).length);
+        Consumer consumer = new Consumer();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            context,
+            consumer);
+        tracker.open();
+        Assert.assertTrue(tracker.isActive());
+        tracker.close();
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        ObjectServiceTracker tracker = open(fContext, new Consumer());
+        ServiceRegistration a = fContext.registerService(
+            IService.class.getName(),
+            new Service(),
+            newProperties("a"));
+        a.setProperties(newProperties("a1"));
+        fContext.registerService(
+            IService.class.getName(),
+            new Service(),
+            newProperties("b"));
+        a.unregister();
+        tracker.close();
+        Assert.assertEquals(4, fRecorder.getEventCount());
+
+        ServiceEventReplayer replayer = newReplayer();
+        List<ServiceEventReplayer.Event> events = replayer.getEvents();
+        Assert.assertEquals(4, events.size());
+        Assert.assertEquals(
+            ServiceEventPublisher.Event.MODIFIED,
+            events.get(1).getType());
+        Assert.assertEquals(
+            ServiceEventPublisher.Event.REMOVED,
+            events.get(3).getType());
+        Assert.assertEquals(events.get(0).getServiceId(), events
+            .get(3)
+            .getServiceId());
+        Assert.assertEquals(Consumer.class.getName(), events.get(0).getKey());
+        Assert.assertEquals(IService.class.getName(), events
+            .get(0)
+            .getServiceType());
+        Assert.assertEquals("a1", events.get(1).getProperties().get("name"));
+
+        // Replayed objects see the same sequence of services
+        BundleContext context = ServiceEventReplayer.newContext();
+        Consumer consumer = new Consumer();
+        ObjectServiceTracker replayed = new ObjectServiceTracker(
+            context,
+            consumer);
+        replayed.open();
+        replayer.replay(context, getClass().getClassLoader(), 0);
+        Assert.assertEquals(
+            Arrays.asList("add:a", "add:b", "remove:a1"),
+            consumer.getCalls());
+        ServiceReference[] references = getServices(context);
+        Assert.assertEquals(1, references.length);
+        Assert.assertEquals("b", references[0].getProperty("name"));
+        Object service = context.getService(references[0]);
+        Assert.assertTrue(service instanceof IService);
+        replayed.close();
+    }
+
+    @Test
+    public void testServicesOfTrackedObjectsAreNotReplayed() throws Exception {
+        MultiServiceTracker tracker = new MultiServiceTracker(
+            fContext,
+            new Consumer(),
+            new Provider());
+        tracker.setHintsFile(null);
+        tracker.setRecorder(fRecorder);
+        tracker.open();
+        tracker.close();
+        ServiceEventReplayer replayer = newReplayer();
+        Assert.assertEquals(1, replayer.getEvents().size());
+
+        BundleContext context = ServiceEventReplayer.newContext();
+        Consumer consumer = new Consumer();
+        MultiServiceTracker replayed = new MultiServiceTracker(
+            context,
+            consumer,
+            new Provider());
+        replayed.setHintsFile(null);
+        replayed.open();
+        replayer.replay(context, getClass().getClassLoader(), 0);
+        Assert.assertEquals(1, getServices(context).length);
+        Assert.assertEquals(Arrays.asList("add:provided"), consumer.getCalls());
+        replayed.close();
+        Assert.assertNull(getServices(context));
+    }
+
+}
@@ -0,0 +1,243 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of the lazy binding of services with {@link ServiceHandle}s.
+ * 
+ * @author kotelnikov
+ */
+public class ServiceHandleTest {
+
+    /**
+     * An object binding stores as service objects.
+     */
+    public static class EagerConsumer {
+
+        private final List<IStore> fStores = new ArrayList<IStore>();
+
+        @OSGIServiceActivator
+        public synchronized void addStore(IStore store) {
+            fStores.add(store);
+        }
+
+        @OSGIServiceDeactivator
+        public synchronized void removeStore(IStore store) {
+            fStores.remove(store);
+        }
+    }
+
+    /**
+     * The type of services created by the {@link StoreFactory}.
+     */
+    public interface IStore {
+    }
+
+    /**
+     * An object binding stores lazily.
+     */
+    public static class LazyConsumer {
+
+        private boolean fActive;
+
+        private final List<ServiceHandle<IStore>> fHandles =
+            new ArrayList<ServiceHandle<IStore>>();
+
+        @OSGIObjectActivator
+        public synchronized void activate() {
+            fActive = true;
+        }
+
+        @OSGIServiceActivator(serviceType = IStore.class)
+        public synchronized void addStore(ServiceHandle<IStore> handle) {
+            fHandles.add(handle);
+        }
+
+        @OSGIObjectDeactivator
+        public synchronized void deactivate() {
+            fActive = false;
+        }
+
+        public synchronized ServiceHandle<IStore> getHandle() {
+            return !fHandles.isEmpty() ? fHandles.get(0) : null;
+        }
+
+        public synchronized boolean isActive() {
+            return fActive;
+        }
+
+        @OSGIServiceDeactivator(serviceType = IStore.class)
+        public synchronized void removeStore(ServiceHandle<IStore> handle) {
+            fHandles.remove(handle);
+        }
+    }
+
+    /**
+     * A store implementation.
+     */
+    public static class Store implements IStore {
+    }
+
+    /**
+     * A service factory counting released services.
+     */
+    public static class StoreFactory implements ServiceFactory {
+
+        private int fReleased;
+
+        public synchronized int getReleased() {
+            return fReleased;
+        }
+
+        public Object getService(
+            Bundle bundle,
+            ServiceRegistration registration) {
+            return new Store();
+        }
+
+        public synchronized void ungetService(
+            Bundle bundle,
+            ServiceRegistration registration,
+            Object service) {
+            fReleased++;
+        }
+    }
+
+    private InMemoryBundleContext fContext;
+
+    private StoreFactory fFactory;
+
+    @Before
+    public void setUp() {
+        fContext = new InMemoryBundleContext();
+        fFactory = new StoreFactory();
+    }
+
+    @After
+    public void tearDown() {
+        fContext = null;
+        fFactory = null;
+    }
+
+    @Test
+    public void testEagerBinding() throws Exception {
+        EagerConsumer consumer = new EagerConsumer();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            consumer);
+        tracker.open();
+        ServiceRegistration registration = fContext.registerService(
+            IStore.class.getName(),
+            fFactory,
+            null);
+        Assert.assertEquals(1, fContext.getFactoryServiceCount());
+        Assert.assertEquals(1, consumer.fStores.size());
+        registration.unregister();
+        Assert.assertEquals(0, consumer.fStores.size());
+        Assert.assertEquals(1, fFactory.getReleased());
+        tracker.close();
+    }
+
+    @Test
+    public void testHandleIsReleased() throws Exception {
+        LazyConsumer consumer = new LazyConsumer();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            consumer);
+        tracker.open();
+        fContext.registerService(IStore.class.getName(), fFactory, null);
+        ServiceHandle<IStore> handle = consumer.getHandle();
+        Assert.assertNotNull(handle.get());
+        tracker.close();
+        Assert.assertFalse(consumer.isActive());
+        Assert.assertNull(consumer.getHandle());
+        Assert.assertNull(handle.get());
+        Assert.assertEquals(1, fFactory.getReleased());
+    }
+
+    @Test
+    public void testLazyBinding() throws Exception {
+        LazyConsumer consumer = new LazyConsumer();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            consumer);
+        tracker.open();
+        Assert.assertFalse(consumer.isActive());
+
+        // The reference counts toward the cardinality without instantiation
+        ServiceRegistration registration = fContext.registerService(
+            IStore.class.getName(),
+            fFactory,
+            null);
+        Assert.assertTrue(consumer.isActive());
+        ServiceHandle<IStore> handle = consumer.getHandle();
+        Assert.assertNotNull(handle);
+        Assert.assertFalse(handle.isFetched());
+        Assert.assertEquals(0, fContext.getFactoryServiceCount());
+        Assert.assertSame(
+            registration.getReference(),
+            handle.getReference());
+
+        // The service object is obtained once and cached
+        IStore store = handle.get();
+        Assert.assertTrue(store instanceof Store);
+        Assert.assertTrue(handle.isFetched());
+        Assert.assertSame(store, handle.get());
+        Assert.assertEquals(1, fContext.getFactoryServiceCount());
+
+        registration.unregister();
+        Assert.assertFalse(consumer.isActive());
+        Assert.assertNull(consumer.getHandle());
+        Assert.assertNull(handle.get());
+        Assert.assertEquals(1, fFactory.getReleased());
+        tracker.close();
+    }
+
+    @Test
+    public void testUnusedServiceIsNeverInstantiated() throws Exception {
+        LazyConsumer consumer = new LazyConsumer();
+        ObjectServiceTracker tracker = new ObjectServiceTracker(
+            fContext,
+            consumer);
+        tracker.open();
+        ServiceRegistration registration = fContext.registerService(
+            IStore.class.getName(),
+            fFactory,
+            null);
+        ServiceHandle<IStore> handle = consumer.getHandle();
+        registration.unregister();
+        tracker.close();
+        Assert.assertNull(handle.get());
+        Assert.assertFalse(handle.isFetched());
+        Assert.assertEquals(0, fContext.getFactoryServiceCount());
+        Assert.assertEquals(0, fFactory.getReleased());
+    }
+
+}
@@ -0,0 +1,208 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of service indexes maintained by {@link ObjectServiceTracker}s (see
+ * {@link OSGIServiceActivator#index()}).
+ * 
+ * @author kotelnikov
+ */
+public class ServiceIndexTest {
+
+    /**
+     * An object binding handlers as service objects.
+     */
+    public static class EagerConsumer {
+
+        @OSGIServiceActivator(min = 0, index = "route")
+        public void addHandler(IHandler handler, Map<String, Object> params) {
+        }
+
+        @OSGIServiceDeactivator
+        public void removeHandler(IHandler handler) {
+        }
+    }
+
+    /**
+     * A handler implementation.
+     */
+    public static class Handler implements IHandler {
+    }
+
+    /**
+     * Handlers indexed by the "route" property.
+     */
+    public interface IHandler {
+    }
+
+    /**
+     * An object binding handlers lazily.
+     */
+    public static class LazyConsumer {
+
+        @OSGIServiceActivator(min = 0, index = "route", serviceType = IHandler.class)
+        public void addHandler(ServiceHandle<IHandler> handle) {
+        }
+
+        @OSGIServiceDeactivator(serviceType = IHandler.class)
+        public void removeHandler(ServiceHandle<IHandler> handle) {
+        }
+    }
+
+    private InMemoryBundleContext fContext;
+
+    private ObjectServiceTracker fTracker;
+
+    private static Hashtable<String, Object> newProperties(Object route) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("route", route);
+        return properties;
+    }
+
+    private ObjectServiceTracker open(Object object) throws Exception {
+        fTracker = new ObjectServiceTracker(fContext, object);
+        fTracker.open();
+        return fTracker;
+    }
+
+    private ServiceRegistration register(Handler handler, Object route) {
+        return register(handler, newProperties(route));
+    }
+
+    private ServiceRegistration register(
+        Handler handler,
+        Hashtable<String, Object> properties) {
+        return fContext.registerService(
+            IHandler.class.getName(),
+            handler,
+            properties);
+    }
+
+    @Before
+    public void setUp() {
+        fContext = new InMemoryBundleContext();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (fTracker != null) {
+            fTracker.close();
+        }
+    }
+
+    @Test
+    public void testEagerIndex() throws Exception {
+        ObjectServiceTracker tracker = open(new EagerConsumer());
+        Handler first = new Handler();
+        Handler second = new Handler();
+        register(first, "/a");
+        register(second, new String[] { "/b", "/c" });
+        ServiceIndex<IHandler> index = tracker.getServiceIndex(
+            IHandler.class,
+            "route");
+        Assert.assertNotNull(index);
+        Assert.assertEquals("route", index.getProperty());
+        Assert.assertSame(first, index.get("/a"));
+        Assert.assertSame(second, index.get("/b"));
+        Assert.assertSame(second, index.get("/c"));
+        Assert.assertNull(index.get("/d"));
+        Assert.assertEquals(3, index.getKeys().size());
+        Assert.assertNull(tracker.getServiceIndex(IHandler.class, "name"));
+        Assert.assertNull(tracker.getServiceIndex(String.class, "route"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEagerServicesAreNotIndexedByHandles() throws Exception {
+        open(new EagerConsumer()).getServiceHandleIndex(
+            IHandler.class,
+            "route");
+    }
+
+    @Test
+    public void testIndexFollowsServiceChanges() throws Exception {
+        ObjectServiceTracker tracker = open(new EagerConsumer());
+        Handler first = new Handler();
+        Handler second = new Handler();
+        ServiceRegistration r1 = register(first, "/a");
+        ServiceRegistration r2 = register(second, new String[] { "/b" });
+        ServiceIndex<IHandler> index = tracker.getServiceIndex(
+            IHandler.class,
+            "route");
+        r1.setProperties(newProperties("/d"));
+        Assert.assertNull(index.get("/a"));
+        Assert.assertSame(first, index.get("/d"));
+        r2.unregister();
+        Assert.assertNull(index.get("/b"));
+        Assert.assertEquals(1, index.getKeys().size());
+    }
+
+    @Test
+    public void testLazyIndex() throws Exception {
+        ObjectServiceTracker tracker = open(new LazyConsumer());
+        Handler handler = new Handler();
+        register(handler, "/a");
+        ServiceIndex<ServiceHandle<IHandler>> index = tracker
+            .getServiceHandleIndex(IHandler.class, "route");
+        ServiceHandle<IHandler> handle = index.get("/a");
+        Assert.assertNotNull(handle);
+        Assert.assertFalse(
+            "Indexed handles do not fetch services",
+            handle.isFetched());
+        Assert.assertSame(handler, handle.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLazyServicesAreIndexedByHandles() throws Exception {
+        open(new LazyConsumer()).getServiceIndex(IHandler.class, "route");
+    }
+
+    @Test
+    public void testRankingOrder() throws Exception {
+        ObjectServiceTracker tracker = open(new EagerConsumer());
+        Handler low = new Handler();
+        Handler high = new Handler();
+        Handler other = new Handler();
+        Hashtable<String, Object> properties = newProperties("/a");
+        properties.put(Constants.SERVICE_RANKING, 10);
+        register(low, "/a");
+        register(high, properties);
+        register(other, "/a");
+        ServiceIndex<IHandler> index = tracker.getServiceIndex(
+            IHandler.class,
+            "route");
+        Assert.assertSame(high, index.get("/a"));
+        Assert.assertEquals(
+            Arrays.<IHandler> asList(high, low, other),
+            index.getAll("/a"));
+        Assert.assertTrue(index.getAll("/b").isEmpty());
+    }
+
+}
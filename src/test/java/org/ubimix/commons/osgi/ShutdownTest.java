@@ -0,0 +1,272 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * Tests of the bulk teardown of trackers (see
+ * {@link MultiServiceTracker#shutdown()}).
+ * 
+ * @author kotelnikov
+ */
+public class ShutdownTest {
+
+    /**
+     * A bundle activator managing a consumer and a provider.
+     */
+    public static class Activator extends MultiserviceActivator {
+
+        private final Log fLog;
+
+        public Activator(Log log) {
+            fLog = log;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fLog.add("activator.activate");
+        }
+
+        @OSGIServiceActivator
+        public void addService(IService service) {
+            fLog.add("activator.addService");
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() {
+            fLog.add("activator.deactivate");
+        }
+
+        @OSGIServiceDeactivator(skipOnShutdown = true)
+        public void removeService(IService service) {
+            fLog.add("activator.removeService");
+        }
+    }
+
+    /**
+     * An object using the {@link IService} and the {@link ILog}.
+     */
+    public static class Consumer {
+
+        private final Log fLog;
+
+        public Consumer(Log log) {
+            fLog = log;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fLog.add("consumer.activate");
+        }
+
+        @OSGIServiceActivator(min = 0)
+        public void addLog(ILog log) {
+        }
+
+        @OSGIServiceActivator
+        public void addService(IService service) {
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() {
+            fLog.add("consumer.deactivate");
+        }
+
+        @OSGIServiceDeactivator
+        public void removeLog(ILog log) {
+            fLog.add("consumer.removeLog");
+        }
+
+        @OSGIServiceDeactivator(skipOnShutdown = true)
+        public void removeService(IService service) {
+            fLog.add("consumer.removeService");
+        }
+    }
+
+    /**
+     * A service registered outside of trackers.
+     */
+    public interface ILog {
+    }
+
+    /**
+     * The service published by the {@link Provider}.
+     */
+    public interface IService {
+    }
+
+    /**
+     * A thread-safe log of calls.
+     */
+    public static class Log implements ILog {
+
+        private final List<String> fEntries = new ArrayList<String>();
+
+        public synchronized void add(String entry) {
+            fEntries.add(entry);
+        }
+
+        public synchronized List<String> getEntries() {
+            return new ArrayList<String>(fEntries);
+        }
+    }
+
+    /**
+     * An object publishing the {@link IService}.
+     */
+    public static class Provider implements IService {
+
+        private final Log fLog;
+
+        public Provider(Log log) {
+            fLog = log;
+        }
+
+        @OSGIObjectActivator
+        public void activate() {
+            fLog.add("provider.activate");
+        }
+
+        @OSGIObjectDeactivator
+        public void deactivate() {
+            fLog.add("provider.deactivate");
+        }
+
+        @OSGIService
+        public IService getService() {
+            return this;
+        }
+    }
+
+    private InMemoryBundleContext fContext;
+
+    private Log fLog;
+
+    private ServiceReference getService() {
+        return fContext.getServiceReference(IService.class.getName());
+    }
+
+    @Before
+    public void setUp() {
+        fContext = new InMemoryBundleContext();
+        fLog = new Log();
+        fContext.registerService(ILog.class.getName(), fLog, null);
+    }
+
+    @After
+    public void tearDown() {
+        fContext = null;
+        fLog = null;
+    }
+
+    @Test
+    public void testActivatorStop() throws Exception {
+        Activator activator = new Activator(fLog);
+        MultiServiceTracker provider = new MultiServiceTracker(
+            fContext,
+            new Provider(fLog));
+        provider.setHintsFile(null);
+        provider.open();
+        activator.start(fContext);
+        activator.stop(fContext);
+        Assert.assertEquals(Arrays.asList(
+            "provider.activate",
+            "activator.addService",
+            "activator.activate",
+            "activator.deactivate"), fLog.getEntries());
+        Assert.assertNull(activator.fTracker);
+        provider.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        MultiServiceTracker tracker = new MultiServiceTracker(
+            fContext,
+            new Consumer(fLog),
+            new Provider(fLog));
+        tracker.setHintsFile(null);
+        tracker.open();
+        tracker.close();
+        Assert.assertNull(getService());
+        List<String> entries = fLog.getEntries();
+        Assert.assertTrue(entries.contains("consumer.removeService"));
+        Assert.assertTrue(entries.contains("consumer.removeLog"));
+        Assert.assertTrue(entries.indexOf("consumer.deactivate") < entries
+            .indexOf("provider.deactivate"));
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        MultiServiceTracker tracker = new MultiServiceTracker(
+            fContext,
+            new Consumer(fLog),
+            new Provider(fLog));
+        tracker.setHintsFile(null);
+        tracker.open();
+        Assert.assertNotNull(getService());
+        Assert.assertEquals(
+            Arrays.asList("provider.activate", "consumer.activate"),
+            fLog.getEntries());
+
+        // Objects are deactivated in the reverse activation order; skippable
+        // service deactivators are not called
+        tracker.shutdown();
+        Assert.assertNull(getService());
+        Assert.assertEquals(Arrays.asList(
+            "provider.activate",
+            "consumer.activate",
+            "consumer.deactivate",
+            "provider.deactivate",
+            "consumer.removeLog"), fLog.getEntries());
+        Assert.assertTrue(tracker.getDeactivationFuture().isDone());
+    }
+
+    @Test
+    public void testTrackerShutdown() throws Exception {
+        ObjectServiceTracker provider = new ObjectServiceTracker(
+            fContext,
+            new Provider(fLog));
+        ObjectServiceTracker consumer = new ObjectServiceTracker(
+            fContext,
+            new Consumer(fLog));
+        provider.open();
+        consumer.open();
+        Assert.assertTrue(consumer.isActive());
+        consumer.shutdown();
+        Assert.assertFalse(consumer.isActive());
+        provider.shutdown();
+        Assert.assertNull(getService());
+        Assert.assertEquals(Arrays.asList(
+            "provider.activate",
+            "consumer.activate",
+            "consumer.deactivate",
+            "consumer.removeLog",
+            "provider.deactivate"), fLog.getEntries());
+    }
+
+}
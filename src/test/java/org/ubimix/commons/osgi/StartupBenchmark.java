@@ -0,0 +1,339 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.ubimix.commons.osgi.internal.InMemoryBundleContext;
+
+/**
+ * This benchmark measures how the activation time of a
+ * {@link MultiServiceTracker} grows with the number of tracked objects, the
+ * number of dependencies of each object (fan-in) and the number of services
+ * registered for each service type. It runs offline using the
+ * {@link InMemoryBundleContext} as a framework stand-in.
+ * <p>
+ * For each scenario the benchmark generates and compiles synthetic component
+ * classes using all five annotations of this library. Components are
+ * organized in layers: each component publishes its own service interface
+ * (using {@link OSGIService}) and depends on services published by
+ * components of the previous layer (using {@link OSGIServiceActivator} and
+ * {@link OSGIServiceDeactivator}); it also has {@link OSGIObjectActivator}
+ * and {@link OSGIObjectDeactivator} methods. Objects are given to the tracker
+ * in a random order, so most objects wait for their providers.
+ * </p>
+ * <p>
+ * The benchmark reports the time until all objects are active, the peak heap
+ * used during the activation, the heap size used by trackers estimated by the
+ * {@link MultiServiceTracker#getFootprint()} method, the maximal number of
+ * registered service listeners and the number of delivered service events. Usage:
+ * </p>
+ * 
+ * <pre>
+ * java org.ubimix.commons.osgi.StartupBenchmark [objects...]
+ * </pre>
+ * <p>
+ * A JDK is required to compile generated classes. By default the benchmark
+ * runs scenarios with 10, 100, 1000 and 10000 objects, with fan-in 1 and 4
+ * and with 1 and 10 services per type.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class StartupBenchmark {
+
+    /**
+     * The number of layers of generated components.
+     */
+    private final static int LAYERS = 5;
+
+    /**
+     * The package of generated classes.
+     */
+    private final static String PACKAGE = "bench";
+
+    /**
+     * Compiles generated classes and returns a class loader for them.
+     * 
+     * @param dir the directory containing generated sources
+     * @param files generated source files
+     * @return a class loader for compiled classes
+     */
+    private static ClassLoader compile(File dir, List<File> files)
+        throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException(
+                "A JDK is required to compile generated components.");
+        }
+        List<String> args = new ArrayList<String>();
+        args.add("-nowarn");
+        args.add("-d");
+        args.add(dir.getPath());
+        args.add("-cp");
+        args.add(System.getProperty("java.class.path"));
+        for (File file : files) {
+            args.add(file.getPath());
+        }
+        int result = compiler.run(null, null, null, args
+            .toArray(new String[args.size()]));
+        if (result != 0) {
+            throw new IllegalStateException("Can not compile components.");
+        }
+        return new URLClassLoader(
+            new URL[] { dir.toURI().toURL() },
+            StartupBenchmark.class.getClassLoader());
+    }
+
+    /**
+     * Removes the given directory with all its content.
+     * 
+     * @param dir the directory to remove
+     */
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Generates sources of component classes and their service interfaces.
+     * 
+     * @param dir the directory where sources are generated
+     * @param classCount the number of component classes
+     * @param fanIn the number of dependencies of each component
+     * @return a list of generated files
+     */
+    private static List<File> generate(File dir, int classCount, int fanIn)
+        throws IOException {
+        File pkg = new File(dir, PACKAGE);
+        pkg.mkdirs();
+        List<File> files = new ArrayList<File>();
+        int layers = Math.min(LAYERS, classCount);
+        for (int i = 0; i < classCount; i++) {
+            files.add(write(pkg, "S" + i, "package "
+                + PACKAGE
+                + ";\npublic interface S"
+                + i
+                + " {}\n"));
+            StringBuilder buf = new StringBuilder();
+            buf.append("package ").append(PACKAGE).append(";\n");
+            buf.append("import java.util.Map;\n");
+            buf.append("import org.ubimix.commons.osgi.*;\n");
+            buf.append("@OSGIService(serviceType = S").append(i).append(
+                ".class)\n");
+            buf.append("public class C").append(i).append(" implements S").append(
+                i).append(" {\n");
+            buf.append("    public int fCounter;\n");
+            int layer = getLayer(i, classCount, layers);
+            if (layer > 0) {
+                int first = getLayerStart(layer - 1, classCount, layers);
+                int width = getLayerStart(layer, classCount, layers) - first;
+                int deps = Math.min(fanIn, width);
+                for (int j = 0; j < deps; j++) {
+                    int dep = first + (i + j) % width;
+                    buf.append("    @OSGIServiceActivator\n");
+                    buf.append("    public void add").append(dep).append(
+                        "(S").append(dep).append(
+                        " s, Map<String, Object> p) { fCounter++; }\n");
+                    buf.append("    @OSGIServiceDeactivator\n");
+                    buf.append("    public void remove").append(dep).append(
+                        "(S").append(dep).append(" s) { fCounter--; }\n");
+                }
+            }
+            buf.append("    @OSGIObjectActivator\n");
+            buf.append("    public void activate() { fCounter++; }\n");
+            buf.append("    @OSGIObjectDeactivator\n");
+            buf.append("    public void deactivate() { fCounter--; }\n");
+            buf.append("}\n");
+            files.add(write(pkg, "C" + i, buf.toString()));
+        }
+        return files;
+    }
+
+    /**
+     * Returns the layer of the component class with the given index.
+     */
+    private static int getLayer(int index, int classCount, int layers) {
+        for (int layer = layers - 1; layer > 0; layer--) {
+            if (index >= getLayerStart(layer, classCount, layers)) {
+                return layer;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the index of the first component class of the given layer.
+     */
+    private static int getLayerStart(int layer, int classCount, int layers) {
+        return (int) ((long) classCount * layer / layers);
+    }
+
+    /**
+     * Returns the sum of used memory of all heap pools.
+     * 
+     * @param peak if this flag is <code>true</code> then the peak usage is
+     *        returned
+     * @return the used heap memory
+     */
+    private static long getHeap(boolean peak) {
+        long result = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                result += peak ? pool.getPeakUsage().getUsed() : pool
+                    .getUsage()
+                    .getUsed();
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 10, 100, 1000, 10000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        int[] fanIns = { 1, 4 };
+        int[] servicesPerType = { 1, 10 };
+        // Warm-up
+        run(100, 2, 1, false);
+        System.out.println(String.format(
+            "%8s %6s %9s %12s %10s %10s %10s %10s",
+            "objects",
+            "fanIn",
+            "svc/type",
+            "active(ms)",
+            "heap(KB)",
+            "est.(KB)",
+            "listeners",
+            "events"));
+        for (int size : sizes) {
+            for (int fanIn : fanIns) {
+                for (int perType : servicesPerType) {
+                    if (perType > size) {
+                        continue;
+                    }
+                    run(size, fanIn, perType, true);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs one scenario.
+     * 
+     * @param objectCount the number of tracked objects
+     * @param fanIn the number of dependencies of each object
+     * @param perType the number of services registered for each service type
+     * @param print if this flag is <code>true</code> then results are printed
+     */
+    private static void run(
+        int objectCount,
+        int fanIn,
+        int perType,
+        boolean print) throws Exception {
+        int classCount = Math.max(1, objectCount / perType);
+        File dir = File.createTempFile("bench", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            List<File> files = generate(dir, classCount, fanIn);
+            ClassLoader loader = compile(dir, files);
+            List<Object> objects = new ArrayList<Object>();
+            for (int i = 0; i < objectCount; i++) {
+                Class<?> cls = loader.loadClass(PACKAGE
+                    + ".C"
+                    + (i % classCount));
+                objects.add(cls.newInstance());
+            }
+            Collections.shuffle(objects, new Random(objectCount));
+
+            InMemoryBundleContext context = new InMemoryBundleContext();
+            System.gc();
+            long heap = getHeap(false);
+            for (MemoryPoolMXBean pool : ManagementFactory
+                .getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long start = System.nanoTime();
+            MultiServiceTracker tracker = new MultiServiceTracker(
+                context,
+                objects.toArray());
+            tracker.open();
+            tracker.getActivationFuture().get(10, TimeUnit.MINUTES);
+            long time = System.nanoTime() - start;
+            long peak = getHeap(true) - heap;
+            long footprint = tracker.getFootprint();
+            tracker.shutdown();
+            if (print) {
+                System.out.println(String.format(
+                    "%8d %6d %9d %12.2f %10d %10d %10d %10d",
+                    objectCount,
+                    fanIn,
+                    perType,
+                    time / 1000000.0,
+                    peak / 1024,
+                    footprint / 1024,
+                    context.getPeakListenerCount(),
+                    context.getEventCount()));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Writes a new source file.
+     */
+    private static File write(File dir, String name, String content)
+        throws IOException {
+        File file = new File(dir, name + ".java");
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,80 @@
+/* ************************************************************************** *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ * 
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * ************************************************************************** */
+package org.ubimix.commons.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * Utility methods shared by tests of this package.
+ * 
+ * @author kotelnikov
+ */
+class TestSupport {
+
+    /**
+     * The maximal time (in milliseconds) to wait for asynchronous changes.
+     */
+    public final static long TIMEOUT = 10000;
+
+    /**
+     * Waits until the given condition is <code>true</code> or until the
+     * {@link #TIMEOUT} expires.
+     * 
+     * @param condition the condition to check
+     * @return the last value of the condition
+     */
+    public static boolean await(Callable<Boolean> condition) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the given file or directory with all its content.
+     * 
+     * @param file the file to remove
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a new empty temporary directory.
+     * 
+     * @return a new temporary directory
+     */
+    public static File newDirectory() throws IOException {
+        File dir = File.createTempFile("ubimix", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+}